@@ -0,0 +1,163 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertEquals;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.os.Debug;
+import android.util.Log;
+import android.view.View;
+
+import androidx.core.content.ContextCompat;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Allocation benchmark for the gallery's overlay badges: once the tiles are warmed up, binding a badge
+ * to a tile and drawing a screenful of badged tiles frame after frame (a steady-state scroll) must not
+ * allocate at all. Everything runs on the main thread, which is the thread the counters measure.
+ */
+@RunWith(AndroidJUnit4.class)
+@SuppressWarnings("deprecation") // Debug alloc counting is deprecated but still implemented by ART
+public class BadgeAllocationBenchmark {
+    private static final String TAG = "BadgeBenchmark";
+    private static final int TILE_COUNT = 12;
+    private static final int TILE_WIDTH = 270;
+    private static final int TILE_HEIGHT = 360;
+    private static final int FRAMES = 300;
+    private static final int WARM_UP_FRAMES = 10;
+
+    private Instrumentation instrumentation;
+    private MediaAdapter.BadgedImageView[] tiles;
+    private Drawable playBadge;
+    private Drawable livePhotoBadge;
+    private Bitmap thumbnail;
+    private Bitmap frame;
+    private Canvas canvas;
+
+    @Before
+    public void setUp() {
+        instrumentation = InstrumentationRegistry.getInstrumentation();
+        Context context = instrumentation.getTargetContext();
+        instrumentation.runOnMainSync(() -> {
+            playBadge = ContextCompat.getDrawable(context, R.drawable.play_button_overlay);
+            livePhotoBadge = ContextCompat.getDrawable(context, R.drawable.live_photo_overlay);
+            int badgeSize = Math.round(48 * context.getResources().getDisplayMetrics().density);
+            thumbnail = Bitmap.createBitmap(TILE_WIDTH, TILE_HEIGHT, Bitmap.Config.RGB_565);
+            frame = Bitmap.createBitmap(TILE_WIDTH * 2, TILE_HEIGHT * 4, Bitmap.Config.ARGB_8888);
+            canvas = new Canvas(frame);
+
+            tiles = new MediaAdapter.BadgedImageView[TILE_COUNT];
+            for (int i = 0; i < TILE_COUNT; i++) {
+                MediaAdapter.BadgedImageView tile = new MediaAdapter.BadgedImageView(context, badgeSize);
+                tile.setImageBitmap(thumbnail);
+                tile.setAspectRatio((float) TILE_HEIGHT / TILE_WIDTH);
+                tile.measure(View.MeasureSpec.makeMeasureSpec(TILE_WIDTH, View.MeasureSpec.EXACTLY),
+                        View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED));
+                tile.layout(0, 0, tile.getMeasuredWidth(), tile.getMeasuredHeight());
+                tiles[i] = tile;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        instrumentation.runOnMainSync(() -> {
+            thumbnail.recycle();
+            frame.recycle();
+        });
+    }
+
+    @Test
+    public void badgeBindAllocatesNothing() {
+        long[] allocated = new long[1];
+        instrumentation.runOnMainSync(() -> {
+            // The first draw of each badge at this size creates its raster; that's a one-off per drawable
+            for (int i = 0; i < WARM_UP_FRAMES; i++) {
+                bindBadges(i);
+                drawFrame(i);
+            }
+            allocated[0] = countAllocatedBytes(() -> {
+                for (int i = 0; i < FRAMES; i++) {
+                    bindBadges(i);
+                }
+            });
+        });
+        Log.i(TAG, "Badge bind: " + allocated[0] + " bytes over " + FRAMES + " rebinds of " + TILE_COUNT + " tiles");
+        assertEquals("Badge bind allocated " + allocated[0] + " bytes", 0, allocated[0]);
+    }
+
+    @Test
+    public void steadyStateScrollAllocatesNothing() {
+        long[] allocated = new long[1];
+        instrumentation.runOnMainSync(() -> {
+            bindBadges(0);
+            for (int i = 0; i < WARM_UP_FRAMES; i++) {
+                drawFrame(i);
+            }
+            allocated[0] = countAllocatedBytes(() -> {
+                for (int i = 0; i < FRAMES; i++) {
+                    drawFrame(i);
+                }
+            });
+        });
+        Log.i(TAG, "Scroll: " + allocated[0] + " bytes over " + FRAMES + " frames of " + TILE_COUNT + " badged tiles");
+        assertEquals("Scrolling allocated " + allocated[0] + " bytes", 0, allocated[0]);
+    }
+
+    /**
+     * What a rebind does to the badge: the tile's kind decides between the shared drawables or none
+     */
+    private void bindBadges(int round) {
+        for (int i = 0; i < TILE_COUNT; i++) {
+            switch ((i + round) % 3) {
+                case 0:
+                    tiles[i].setBadge(playBadge);
+                    break;
+                case 1:
+                    tiles[i].setBadge(livePhotoBadge);
+                    break;
+                default:
+                    tiles[i].setBadge(null);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * One frame of a two-column grid scrolled {@code offset} pixels further than the last; the tiles
+     * stay bound, as they do between rebinds while scrolling
+     */
+    private void drawFrame(int offset) {
+        canvas.drawColor(0xFFFFFFFF);
+        for (int i = 0; i < TILE_COUNT; i++) {
+            int save = canvas.save();
+            canvas.translate((i % 2) * TILE_WIDTH, (i / 2) * TILE_HEIGHT - offset % TILE_HEIGHT);
+            tiles[i].draw(canvas);
+            canvas.restoreToCount(save);
+        }
+    }
+
+    private interface Work {
+        void run();
+    }
+
+    private static long countAllocatedBytes(Work work) {
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        try {
+            work.run();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        return Debug.getThreadAllocSize();
+    }
+}
@@ -0,0 +1,190 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Throughput benchmark for muxing live photos from files: {@link LivePhotoCreator#createLivePhoto(File, File, File)},
+ * which appends through {@link java.nio.channels.FileChannel#transferTo}, against the old 8KB byte[]
+ * read/write loop. Ten pairs of a 2MB still and an 8MB faststart clip make 100MB of input per pass.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LivePhotoMuxBenchmark {
+    private static final String TAG = "LivePhotoMuxBenchmark";
+    private static final int PAIR_COUNT = 10;
+    private static final int IMAGE_SIZE = 2 * 1024 * 1024;
+    private static final int VIDEO_SIZE = 8 * 1024 * 1024;
+    private static final int PASSES = 3;
+
+    private File directory;
+    private File[] images;
+    private File[] videos;
+    private File output;
+
+    @Before
+    public void setUp() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        directory = new File(context.getCacheDir(), "mux_benchmark");
+        directory.mkdirs();
+        output = new File(directory, "output.jpg");
+        images = new File[PAIR_COUNT];
+        videos = new File[PAIR_COUNT];
+        Random random = new Random(42);
+        for (int i = 0; i < PAIR_COUNT; i++) {
+            images[i] = new File(directory, "still_" + i + ".jpg");
+            videos[i] = new File(directory, "clip_" + i + ".mp4");
+            writeJpeg(images[i], random);
+            writeFaststartMp4(videos[i], random);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void transferToIsNotSlowerThanByteArrayLoop() throws IOException {
+        // Warm up both paths and the page cache
+        muxAllWithTransferTo();
+        muxAllWithByteArray();
+
+        long transferToMs = Long.MAX_VALUE;
+        long byteArrayMs = Long.MAX_VALUE;
+        for (int pass = 0; pass < PASSES; pass++) {
+            long start = SystemClock.elapsedRealtime();
+            muxAllWithTransferTo();
+            transferToMs = Math.min(transferToMs, SystemClock.elapsedRealtime() - start);
+
+            start = SystemClock.elapsedRealtime();
+            muxAllWithByteArray();
+            byteArrayMs = Math.min(byteArrayMs, SystemClock.elapsedRealtime() - start);
+        }
+
+        long inputBytes = (long) PAIR_COUNT * (IMAGE_SIZE + VIDEO_SIZE);
+        Log.i(TAG, "Muxing " + (inputBytes >> 20) + "MB: transferTo " + transferToMs + "ms (" +
+                throughput(inputBytes, transferToMs) + "MB/s), 8KB byte[] loop " + byteArrayMs + "ms (" +
+                throughput(inputBytes, byteArrayMs) + "MB/s)");
+        // Generous margin so a noisy device doesn't fail the run; a regression shows up as a multiple
+        assertTrue("transferTo took " + transferToMs + "ms against " + byteArrayMs + "ms for the byte[] loop",
+                transferToMs <= byteArrayMs * 2 + 50);
+    }
+
+    private void muxAllWithTransferTo() {
+        for (int i = 0; i < PAIR_COUNT; i++) {
+            assertTrue(LivePhotoCreator.createLivePhoto(images[i], videos[i], output));
+            // Still, XMP segment, clip; the clip has to end the file exactly
+            assertTrue(output.length() > IMAGE_SIZE + VIDEO_SIZE);
+        }
+    }
+
+    private void muxAllWithByteArray() throws IOException {
+        byte[] xmpSegment = new byte[1024];
+        for (int i = 0; i < PAIR_COUNT; i++) {
+            // The loop the old createLivePhotoStreaming ran: SOI, XMP, then the rest of the still and the clip
+            try (FileInputStream imageStream = new FileInputStream(images[i]);
+                 FileInputStream videoStream = new FileInputStream(videos[i]);
+                 FileOutputStream outputStream = new FileOutputStream(output)) {
+                byte[] buffer = new byte[8192];
+                byte[] header = new byte[2];
+                assertEquals(2, imageStream.read(header));
+                outputStream.write(header);
+                outputStream.write(xmpSegment);
+                int read;
+                while ((read = imageStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, read);
+                }
+                while ((read = videoStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, read);
+                }
+            }
+            assertEquals(IMAGE_SIZE + VIDEO_SIZE + xmpSegment.length, output.length());
+        }
+    }
+
+    private static long throughput(long bytes, long millis) {
+        return millis > 0 ? (bytes >> 20) * 1000 / millis : 0;
+    }
+
+    /**
+     * SOI, a baseline frame header, the scan header and random scan data up to EOI; enough for the
+     * segment walker, which stops at the start of scan
+     */
+    private static void writeJpeg(File file, Random random) throws IOException {
+        byte[] header = {
+                (byte) 0xFF, (byte) 0xD8,
+                // SOF0: 8-bit, 1080x1440, one component
+                (byte) 0xFF, (byte) 0xC0, 0x00, 0x0B, 0x08, 0x05, (byte) 0xA0, 0x04, 0x38, 0x01, 0x01, 0x11, 0x00,
+                // SOS: one component
+                (byte) 0xFF, (byte) 0xDA, 0x00, 0x08, 0x01, 0x01, 0x00, 0x00, 0x3F, 0x00,
+        };
+        byte[] scan = new byte[IMAGE_SIZE - header.length - 2];
+        random.nextBytes(scan);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(header);
+            out.write(scan);
+            out.write(new byte[]{(byte) 0xFF, (byte) 0xD9});
+        }
+    }
+
+    /**
+     * ftyp, an empty moov and an mdat of random bytes. The moov already precedes the mdat, so the clip is
+     * appended verbatim, like the faststart clips XHS serves.
+     */
+    private static void writeFaststartMp4(File file, Random random) throws IOException {
+        byte[] ftyp = box("ftyp", "isom\0\0\u0002\0isomiso2mp41".getBytes(StandardCharsets.US_ASCII));
+        byte[] moov = box("moov", new byte[0]);
+        byte[] media = new byte[VIDEO_SIZE - ftyp.length - moov.length - 8];
+        random.nextBytes(media);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(ftyp);
+            out.write(moov);
+            out.write(boxHeader("mdat", media.length));
+            out.write(media);
+        }
+    }
+
+    private static byte[] box(String type, byte[] payload) {
+        byte[] box = new byte[8 + payload.length];
+        System.arraycopy(boxHeader(type, payload.length), 0, box, 0, 8);
+        System.arraycopy(payload, 0, box, 8, payload.length);
+        return box;
+    }
+
+    private static byte[] boxHeader(String type, int payloadLength) {
+        int size = 8 + payloadLength;
+        byte[] header = new byte[8];
+        header[0] = (byte) (size >>> 24);
+        header[1] = (byte) (size >>> 16);
+        header[2] = (byte) (size >>> 8);
+        header[3] = (byte) size;
+        System.arraycopy(type.getBytes(StandardCharsets.US_ASCII), 0, header, 4, 4);
+        return header;
+    }
+}
@@ -0,0 +1,101 @@
+package com.neoruaa.xhsdn;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps bitmaps nobody is using any more so the next decode can draw into one of them
+ * ({@link android.graphics.BitmapFactory.Options#inBitmap}) instead of allocating a new one.
+ * Bitmaps are bucketed by allocation size; a request is served by the smallest pooled bitmap that is
+ * large enough, as long as it isn't wastefully larger.
+ */
+public final class BitmapPool {
+    // A pooled bitmap may be at most this many times larger than the request it serves
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private final long maxBytes;
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+    private long pooledBytes = 0;
+
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Hands a bitmap to the pool. The caller must not touch it afterwards.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int size = bitmap.getAllocationByteCount();
+        if (size > maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        ArrayDeque<Bitmap> bucket = buckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            buckets.put(size, bucket);
+        }
+        bucket.push(bitmap);
+        pooledBytes += size;
+
+        // Over budget: let go of the largest bitmaps first, they are the least likely to fit a thumbnail
+        while (pooledBytes > maxBytes) {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> largest = buckets.lastEntry();
+            Bitmap evicted = largest.getValue().pop();
+            if (largest.getValue().isEmpty()) {
+                buckets.remove(largest.getKey());
+            }
+            pooledBytes -= largest.getKey();
+            evicted.recycle();
+        }
+    }
+
+    /**
+     * Takes a bitmap that can be reconfigured to {@code width} x {@code height} in {@code config}
+     * @return A pooled bitmap, reconfigured to the requested size, or null if none fits
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        int needed = width * height * bytesPerPixel(config);
+        Map.Entry<Integer, ArrayDeque<Bitmap>> entry = buckets.ceilingEntry(needed);
+        if (entry == null || entry.getKey() > (long) needed * MAX_SIZE_MULTIPLE) {
+            return null;
+        }
+        Bitmap bitmap = entry.getValue().pop();
+        if (entry.getValue().isEmpty()) {
+            buckets.remove(entry.getKey());
+        }
+        pooledBytes -= entry.getKey();
+        try {
+            bitmap.reconfigure(width, height, config);
+        } catch (IllegalArgumentException e) {
+            bitmap.recycle();
+            return null;
+        }
+        return bitmap;
+    }
+
+    public synchronized void clear() {
+        for (ArrayDeque<Bitmap> bucket : buckets.values()) {
+            for (Bitmap bitmap : bucket) {
+                bitmap.recycle();
+            }
+        }
+        buckets.clear();
+        pooledBytes = 0;
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+}
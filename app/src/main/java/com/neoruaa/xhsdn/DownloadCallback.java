@@ -1,8 +1,33 @@
 package com.neoruaa.xhsdn;
 
 public interface DownloadCallback {
-    void onFileDownloaded(String filePath);
+    /**
+     * Reports a media item of a note as soon as the note is parsed, before it is downloaded
+     * @param sourceUrl Identifies the item; the same URL comes back with its onFileDownloaded
+     * @param previewUrl Small preview rendition of the item, or null if the note has none
+     * @param width Width the note lists for the media, or 0 if unknown
+     * @param height Height the note lists for the media, or 0 if unknown
+     */
+    void onMediaListed(String sourceUrl, String previewUrl, int width, int height);
+    /**
+     * @param sourceUrl The URL the item was listed under, or null if it wasn't listed
+     */
+    void onFileDownloaded(String filePath, String sourceUrl);
     void onDownloadProgress(String status);
-    void onDownloadProgressUpdate(long downloaded, long total);
-    void onDownloadError(String status, String originalUrl);
-}
\ No newline at end of file
+    /**
+     * Called from the transfer's own thread after every read, so keep it cheap; several items may
+     * report at the same time. See {@link TransferProgress} for turning these into UI updates.
+     * @param itemId Identifies one transfer: the URL being downloaded plus a sequence number
+     * @param total Content length of the item, or -1 if the server didn't send one
+     */
+    void onDownloadProgressUpdate(String itemId, long downloaded, long total);
+    /**
+     * Called exactly once per transfer id when the transfer is over, after its retries, whether or not
+     * it got as far as reporting progress
+     */
+    void onTransferEnded(String itemId, boolean succeeded);
+    /**
+     * @param code What kind of failure this is; the message is only for display
+     */
+    void onDownloadError(DownloadEvent.ErrorCode code, String status, String originalUrl);
+}
@@ -0,0 +1,154 @@
+package com.neoruaa.xhsdn;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import okhttp3.HttpUrl;
+
+/**
+ * Single-flight layer in front of the downloader.
+ * Concurrent requests for the same CDN resource (reposts in a multi-link batch, duplicate entries
+ * within a note) share one network transfer: the first requester becomes the leader and downloads,
+ * everyone else waits for it and copies the finished file into their own destination.
+ */
+public final class DownloadCoalescer {
+    private static final String TAG = "DownloadCoalescer";
+    // Leading path segments that vary per request without changing the resource:
+    // the signing timestamp (e.g. 202404121854) and the 32-digit signature
+    private static final Pattern VOLATILE_SEGMENT_PATTERN = Pattern.compile("\\d{8,}|[0-9a-fA-F]{32}");
+    // How long a follower waits for the leader before downloading on its own; longer than the
+    // leader's own wait for disk space, so a healthy leader is never abandoned
+    private static final long FOLLOWER_TIMEOUT_MS = 90_000;
+
+    private static final Map<String, Flight> IN_FLIGHT = new HashMap<>();
+
+    private DownloadCoalescer() {
+    }
+
+    /**
+     * Joins the in-flight transfer for the resource behind {@code url}, or starts one.
+     * The leader must always {@link Flight#complete} the returned flight, even on failure.
+     */
+    public static Flight join(String url) {
+        String key = normalizeKey(url);
+        synchronized (IN_FLIGHT) {
+            Flight flight = IN_FLIGHT.get(key);
+            if (flight != null) {
+                Log.d(TAG, "Joining in-flight download for " + key);
+                return new Flight(key, flight.done, false, flight);
+            }
+            flight = new Flight(key, new CountDownLatch(1), true, null);
+            IN_FLIGHT.put(key, flight);
+            return flight;
+        }
+    }
+
+    /**
+     * Reduces a media URL to the CDN token that identifies the resource.
+     * The host is kept: different CDN hosts aren't guaranteed to serve the same bytes for a token.
+     * On XHS hosts the per-request signing prefixes are dropped, and the "!style" suffix only selects
+     * a web preview rendition, so it is dropped as well. Query strings are dropped too, except image
+     * processing directives (imageView2/imageMogr2) that change the bytes.
+     */
+    static String normalizeKey(String url) {
+        HttpUrl httpUrl = url != null ? HttpUrl.parse(url) : null;
+        if (httpUrl == null) {
+            return url != null ? url : "";
+        }
+
+        String host = httpUrl.host().toLowerCase(Locale.ROOT);
+        boolean xhsCdn = host.endsWith("xhscdn.com") || host.endsWith("xiaohongshu.com");
+
+        StringBuilder key = new StringBuilder(host);
+        List<String> segments = httpUrl.pathSegments();
+        boolean leading = true;
+        for (String segment : segments) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            if (xhsCdn && leading && VOLATILE_SEGMENT_PATTERN.matcher(segment).matches()) {
+                continue;
+            }
+            leading = false;
+            int styleIndex = segment.indexOf('!');
+            key.append('/').append(styleIndex >= 0 ? segment.substring(0, styleIndex) : segment);
+        }
+
+        String query = httpUrl.encodedQuery();
+        if (query != null && (query.startsWith("imageView") || query.startsWith("imageMogr"))) {
+            key.append('?').append(query);
+        }
+        return key.toString();
+    }
+
+    /**
+     * One requester's view of a shared transfer
+     */
+    public static final class Flight {
+        private final String key;
+        private final CountDownLatch done;
+        private final boolean leader;
+        // Followers read the result from the leader's flight
+        private final Flight shared;
+        private volatile File result;
+
+        private Flight(String key, CountDownLatch done, boolean leader, Flight shared) {
+            this.key = key;
+            this.done = done;
+            this.leader = leader;
+            this.shared = shared;
+        }
+
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * Publishes the leader's outcome and wakes up every follower. Calling this on a
+         * follower's flight, or more than once, has no effect.
+         * @param file The downloaded file, or null if the download failed
+         */
+        public void complete(File file) {
+            if (!leader || done.getCount() == 0) {
+                return;
+            }
+            result = file;
+            synchronized (IN_FLIGHT) {
+                if (IN_FLIGHT.get(key) == this) {
+                    IN_FLIGHT.remove(key);
+                }
+            }
+            done.countDown();
+        }
+
+        /**
+         * Waits for the leader to finish, at most {@link #FOLLOWER_TIMEOUT_MS}.
+         * @return The leader's file, or null if it failed or took too long and the caller should
+         *         download on its own
+         */
+        public File await() {
+            if (leader) {
+                return result;
+            }
+            try {
+                if (!done.await(FOLLOWER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "Gave up waiting for in-flight download of " + key);
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            File file = shared.result;
+            return file != null && file.isFile() && file.canRead() ? file : null;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.neoruaa.xhsdn;
+
+/**
+ * One report from a download, as handed from the worker threads to the UI.
+ * Events are immutable, so any number of concurrent transfers can publish them without sharing state,
+ * and the UI switches on {@link #type} instead of parsing a formatted string back apart.
+ * Byte progress doesn't come through here; it is sampled by {@link TransferProgress}.
+ */
+public final class DownloadEvent {
+    public enum Type {
+        // A line of text for the status log
+        STATUS,
+        // Something went wrong; see {@link #errorCode}
+        ERROR
+    }
+
+    /**
+     * Why a download failed. The UI decides what to offer from the code, never from the message text.
+     */
+    public enum ErrorCode {
+        POST_ID_NOT_FOUND(true),
+        POST_FETCH_FAILED(true),
+        NO_MEDIA_FOUND(true),
+        HTTP_ERROR(false),
+        IO_ERROR(false),
+        STORAGE_FULL(false),
+        SECURITY_ERROR(false),
+        INTEGRITY_FAILED(false),
+        DOWNLOAD_FAILED(false),
+        LIVE_PHOTO_FALLBACK(false),
+        LIVE_PHOTO_FAILED(false),
+        UNEXPECTED(false);
+
+        private final boolean offersWebCrawl;
+
+        ErrorCode(boolean offersWebCrawl) {
+            this.offersWebCrawl = offersWebCrawl;
+        }
+
+        /**
+         * True when the note itself couldn't be parsed, so crawling the page in a WebView may still work
+         */
+        public boolean offersWebCrawl() {
+            return offersWebCrawl;
+        }
+    }
+
+    public final Type type;
+    // The original URL for ERROR, null for STATUS
+    public final String itemId;
+    public final String message;
+    public final ErrorCode errorCode;
+
+    private DownloadEvent(Type type, String itemId, String message, ErrorCode errorCode) {
+        this.type = type;
+        this.itemId = itemId;
+        this.message = message;
+        this.errorCode = errorCode;
+    }
+
+    public static DownloadEvent status(String message) {
+        return new DownloadEvent(Type.STATUS, null, message, null);
+    }
+
+    public static DownloadEvent error(ErrorCode errorCode, String message, String originalUrl) {
+        return new DownloadEvent(Type.ERROR, originalUrl, message, errorCode);
+    }
+}
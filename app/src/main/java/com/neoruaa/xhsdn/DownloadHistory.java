@@ -0,0 +1,178 @@
+package com.neoruaa.xhsdn;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Environment;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Pages through everything the app has saved to Pictures/xhs and Movies/xhs, newest first, straight
+ * from MediaStore. Pages are keyed on (date added, id) rather than an offset, so reading page N costs
+ * the same as reading the first one and only one page of rows is ever held by a cursor.
+ */
+public final class DownloadHistory {
+    private static final String TAG = "DownloadHistory";
+    public static final int PAGE_SIZE = 120;
+
+    // Duplicate counters, live photo / fallback suffixes, then the media index: what is left names the note
+    private static final Pattern DUPLICATE_SUFFIX = Pattern.compile("\\s*\\(\\d+\\)$");
+    private static final Pattern PART_SUFFIX = Pattern.compile("_(live|img|vid)$");
+    private static final Pattern INDEX_SUFFIX = Pattern.compile("_\\d+$");
+
+    private static final String[] PROJECTION = {
+            MediaStore.Files.FileColumns._ID,
+            MediaStore.Files.FileColumns.MEDIA_TYPE,
+            MediaStore.MediaColumns.DISPLAY_NAME,
+            MediaStore.MediaColumns.MIME_TYPE,
+            MediaStore.MediaColumns.DATE_ADDED,
+            MediaStore.MediaColumns.DATA,
+    };
+
+    private final ContentResolver resolver;
+    private final String folderSelection;
+    private final String[] folderArgs;
+
+    public DownloadHistory(Context context) {
+        this.resolver = context.getContentResolver();
+        String mediaTypes = MediaStore.Files.FileColumns.MEDIA_TYPE + " IN ("
+                + MediaStore.Files.FileColumns.MEDIA_TYPE_IMAGE + "," + MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO + ")";
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            folderSelection = mediaTypes + " AND (" + MediaStore.MediaColumns.RELATIVE_PATH + " LIKE ? OR "
+                    + MediaStore.MediaColumns.RELATIVE_PATH + " LIKE ?)";
+            folderArgs = new String[] {
+                    Environment.DIRECTORY_PICTURES + "/xhs/%",
+                    Environment.DIRECTORY_MOVIES + "/xhs/%",
+            };
+        } else {
+            folderSelection = mediaTypes + " AND (" + MediaStore.MediaColumns.DATA + " LIKE ? OR "
+                    + MediaStore.MediaColumns.DATA + " LIKE ?)";
+            folderArgs = new String[] {
+                    new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES), "xhs") + "/%",
+                    new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MOVIES), "xhs") + "/%",
+            };
+        }
+    }
+
+    /**
+     * Reads the page that follows {@code after}. Runs a query, so call it off the main thread.
+     * @param after The last entry of the previous page, or null for the first page
+     * @return Up to {@link #PAGE_SIZE} entries; fewer means the history is exhausted
+     */
+    public List<Entry> loadPage(Entry after) {
+        String selection = folderSelection;
+        List<String> args = new ArrayList<>(Arrays.asList(folderArgs));
+        if (after != null) {
+            selection += " AND (" + MediaStore.MediaColumns.DATE_ADDED + " < ? OR (" + MediaStore.MediaColumns.DATE_ADDED
+                    + " = ? AND " + MediaStore.Files.FileColumns._ID + " < ?))";
+            args.add(String.valueOf(after.dateAdded));
+            args.add(String.valueOf(after.dateAdded));
+            args.add(String.valueOf(after.id));
+        }
+        String sortOrder = MediaStore.MediaColumns.DATE_ADDED + " DESC, " + MediaStore.Files.FileColumns._ID + " DESC";
+        Uri collection = MediaStore.Files.getContentUri("external");
+
+        List<Entry> entries = new ArrayList<>(PAGE_SIZE);
+        try (Cursor cursor = query(collection, selection, args.toArray(new String[0]), sortOrder)) {
+            if (cursor == null) {
+                return entries;
+            }
+            int idColumn = cursor.getColumnIndexOrThrow(MediaStore.Files.FileColumns._ID);
+            int typeColumn = cursor.getColumnIndexOrThrow(MediaStore.Files.FileColumns.MEDIA_TYPE);
+            int nameColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DISPLAY_NAME);
+            int mimeColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.MIME_TYPE);
+            int dateColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATE_ADDED);
+            int dataColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATA);
+            while (entries.size() < PAGE_SIZE && cursor.moveToNext()) {
+                long id = cursor.getLong(idColumn);
+                boolean video = cursor.getInt(typeColumn) == MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO;
+                Uri uri = ContentUris.withAppendedId(video
+                        ? MediaStore.Video.Media.EXTERNAL_CONTENT_URI
+                        : MediaStore.Images.Media.EXTERNAL_CONTENT_URI, id);
+                String displayName = cursor.getString(nameColumn);
+                entries.add(new Entry(id, uri, cursor.getString(dataColumn), displayName, cursor.getString(mimeColumn),
+                        video, cursor.getLong(dateColumn), noteKey(displayName)));
+            }
+        } catch (RuntimeException e) {
+            // A provider that rejects the query shouldn't take the screen down with it
+            Log.e(TAG, "Failed to query download history: " + e.getMessage());
+        }
+        return entries;
+    }
+
+    private Cursor query(Uri collection, String selection, String[] args, String sortOrder) {
+        // QUERY_ARG_LIMIT exists since O, but MediaProvider only honours it from R; before that it
+        // ignores the argument and returns every row
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            Bundle queryArgs = new Bundle();
+            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, selection);
+            queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, args);
+            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, sortOrder);
+            queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, PAGE_SIZE);
+            return resolver.query(collection, PROJECTION, queryArgs, null);
+        }
+        // Older MediaProviders take the limit as part of the sort order
+        return resolver.query(collection, PROJECTION, selection, args, sortOrder + " LIMIT " + PAGE_SIZE);
+    }
+
+    /**
+     * Works out which note a saved file came from by its name: xhs_{base}_{index}[_live].{ext}, where
+     * {base} is the note id or whatever the custom naming template produced
+     */
+    static String noteKey(String displayName) {
+        if (displayName == null) {
+            return "";
+        }
+        String name = displayName;
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        name = DUPLICATE_SUFFIX.matcher(name).replaceFirst("");
+        name = PART_SUFFIX.matcher(name).replaceFirst("");
+        name = INDEX_SUFFIX.matcher(name).replaceFirst("");
+        if (name.startsWith("xhs_")) {
+            name = name.substring("xhs_".length());
+        }
+        return name;
+    }
+
+    /**
+     * One saved file
+     */
+    public static final class Entry {
+        public final long id;
+        public final Uri uri;
+        // May be null when MediaStore doesn't expose the path
+        public final String filePath;
+        public final String displayName;
+        public final String mimeType;
+        public final boolean video;
+        // Seconds since the epoch
+        public final long dateAdded;
+        public final String noteKey;
+
+        Entry(long id, Uri uri, String filePath, String displayName, String mimeType, boolean video,
+              long dateAdded, String noteKey) {
+            this.id = id;
+            this.uri = uri;
+            this.filePath = filePath;
+            this.displayName = displayName;
+            this.mimeType = mimeType;
+            this.video = video;
+            this.dateAdded = dateAdded;
+            this.noteKey = noteKey;
+        }
+    }
+}
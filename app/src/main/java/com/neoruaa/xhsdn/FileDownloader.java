@@ -9,32 +9,58 @@ import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
 import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
+import okhttp3.Call;
 import okhttp3.ConnectionPool;
 import okhttp3.OkHttpClient;
 import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
-import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.HashingSink;
+import okio.Okio;
 
 public class FileDownloader {
     private static final String TAG = "FileDownloader";
+    // Number of times a download is attempted when the body fails integrity verification
+    private static final int MAX_DOWNLOAD_ATTEMPTS = 3;
+    private static final Pattern MD5_ETAG_PATTERN = Pattern.compile("[0-9a-fA-F]{32}");
+    // Upper bound for a single read from the response source; matches the old 64KB copy buffer
+    private static final long TRANSFER_CHUNK_SIZE = 65536;
+    private static final AtomicLong TRANSFER_IDS = new AtomicLong();
     private OkHttpClient httpClient;
     private Context context;
     private DownloadCallback callback;
+    // Calls this downloader has started, so cancel() can abort one mid-body; finished calls drop out once collected
+    private final Set<Call> calls = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private volatile boolean cancelled = false;
+    // Listed URL of what this downloader saves, so the gallery can swap the file in for its preview
+    private String sourceUrl;
     
     public FileDownloader(Context context) {
         this.context = context;
@@ -55,6 +81,22 @@ public class FileDownloader {
         this.callback = callback;
     }
     
+    /**
+     * Sets the listed URL reported with the files this downloader saves
+     * (see {@link DownloadCallback#onMediaListed})
+     */
+    public void setSourceUrl(String sourceUrl) {
+        this.sourceUrl = sourceUrl;
+    }
+
+    /**
+     * A progress id for one transfer of {@code url}. The same URL can be fetched by two transfers at
+     * once (a follower that gave up waiting on its leader), so the URL alone can't tell them apart.
+     */
+    private static String newTransferId(String url) {
+        return url + "#" + TRANSFER_IDS.incrementAndGet();
+    }
+
     public boolean downloadFile(String url, String fileName) {
         // Use current date timestamp when no timestamp is provided
         String timestamp = getTimestampForFilename(); // 日期格式时间戳，如 251114
@@ -62,120 +104,582 @@ public class FileDownloader {
     }
 
     public boolean downloadFile(String url, String fileName, String timestamp) {
+        // 同一资源正在被其他任务下载时，等待其完成后复制结果，而不是再从网络下载一遍
+        DownloadCoalescer.Flight flight = DownloadCoalescer.join(url);
+        String transferId = newTransferId(url);
+        File downloadedFile = null;
         try {
-            // Create the request
-            Request request = new Request.Builder()
-                    .url(url)
-                    .addHeader("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/91.0.4472.124 Safari/537.36")
-                    .addHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=1.0,image/avif,image/webp,image/apng,*/*;q=1.0")
-                    .addHeader("Referer", "https://www.xiaohongshu.com/")
-                    .build();
+            if (!flight.isLeader()) {
+                File sharedFile = flight.await();
+                if (sharedFile != null && copySharedDownload(sharedFile, url, fileName)) {
+                    return true;
+                }
+                Log.d(TAG, "Shared download unavailable, downloading separately: " + url);
+            }
+
+            for (int attempt = 1; attempt <= MAX_DOWNLOAD_ATTEMPTS; attempt++) {
+                try {
+                    downloadedFile = downloadFileOnce(url, transferId, fileName);
+                    return downloadedFile != null;
+                } catch (IntegrityException e) {
+                    if (cancelled) {
+                        Log.d(TAG, "Download cancelled: " + url);
+                        return false;
+                    }
+                    Log.w(TAG, "Integrity check failed for " + url + " (attempt " + attempt + "/" +
+                            MAX_DOWNLOAD_ATTEMPTS + "): " + e.getMessage());
+                } catch (StorageReservations.InsufficientSpaceException e) {
+                    Log.e(TAG, "Not enough space for " + url + ": " + e.getMessage());
+
+                    // Retrying won't make room, so tell the user the disk is full rather than a generic IO error
+                    if (callback != null) {
+                        callback.onDownloadError(DownloadEvent.ErrorCode.STORAGE_FULL, e.getMessage(), url);
+                    }
+                    return false;
+                } catch (IOException e) {
+                    Log.e(TAG, "Error downloading file: " + e.getMessage());
+                    e.printStackTrace();
+
+                    // Notify the callback about the download error with the original URL
+                    if (callback != null) {
+                        callback.onDownloadError(DownloadEvent.ErrorCode.IO_ERROR, "IO Error downloading file: " + e.getMessage(), url);
+                    }
+                    return false;
+                } catch (SecurityException e) {
+                    Log.e(TAG, "Security exception while downloading file: " + e.getMessage());
+                    e.printStackTrace();
+
+                    // Notify the callback about the download error with the original URL
+                    if (callback != null) {
+                        callback.onDownloadError(DownloadEvent.ErrorCode.SECURITY_ERROR, "Security exception while downloading file: " + e.getMessage(), url);
+                    }
+                    return false;
+                }
+            }
+
+            if (callback != null) {
+                callback.onDownloadError(DownloadEvent.ErrorCode.INTEGRITY_FAILED, "Integrity check failed after " + MAX_DOWNLOAD_ATTEMPTS + " attempts", url);
+            }
+            return false;
+        } finally {
+            if (callback != null) {
+                callback.onTransferEnded(transferId, downloadedFile != null);
+            }
+            // Wake up anyone waiting on this transfer, with the file or null so they fetch it themselves
+            flight.complete(downloadedFile);
+        }
+    }
 
-            // Execute the request
-            Response response = httpClient.newCall(request).execute();
+    /**
+     * Performs a single download attempt. Throws {@link IntegrityException} when the body
+     * was truncated or does not match the checksum advertised by the CDN, so the caller can re-fetch.
+     * @param transferId The id progress is reported under
+     * @return The saved file, or null if the download failed
+     */
+    private File downloadFileOnce(String url, String transferId, String fileName) throws IOException {
+        // Create the request
+        Request request = buildMediaRequest(url);
 
+        // Execute the request
+        try (Response response = newCall(request).execute()) {
             if (response.isSuccessful() && response.body() != null) {
-                // 优先从响应中获取文件扩展名 (Content-Type header)
-                String fileExtension = getFileExtension(response, url);
-
-                // 从原始文件名中提取基础名称（去掉扩展名）
-                String baseFileName = fileName;
-                int lastDotIndex = fileName.lastIndexOf('.');
-                if (lastDotIndex > 0 && lastDotIndex < fileName.length() - 1) {
-                    baseFileName = fileName.substring(0, lastDotIndex);
-                    Log.d(TAG, "Original filename has extension: " + fileName.substring(lastDotIndex + 1).toLowerCase() + 
-                          ", but using Content-Type based extension: " + fileExtension);
+                // 根据响应内容的前几个字节判断文件类型，在创建 MediaStore 条目之前确定扩展名和集合
+                MediaClassifier.MediaType mediaType = MediaClassifier.classify(
+                        response.body().source(), response.header("Content-Type"), url);
+                File destinationFile = saveBody(transferId, fileName, mediaType, response.body().source(),
+                        response.body().contentLength(), getExpectedMd5(response));
+
+                if (publishDownloadedFile(destinationFile, response.body().contentLength())) {
+                    return destinationFile;
                 }
+            } else {
+                Log.e(TAG, "Download failed. Response code: " + response.code());
 
-                String fullFileName = "xhs_" + baseFileName + "." + fileExtension;
+                // Notify the callback about the download error with the original URL
+                if (callback != null) {
+                    callback.onDownloadError(DownloadEvent.ErrorCode.HTTP_ERROR, "Download failed. Response code: " + response.code(), url);
+                }
+            }
+        }
 
-                File destinationFile = null;
+        return null;
+    }
+    
+    /**
+     * Streams a live photo straight from the network into a gallery entry ({@link #saveToGallery}):
+     * the still is written with the XMP segment spliced in and the video is appended as it arrives,
+     * so nothing is staged in temporary files. The still is checked from its first bytes before the
+     * video is requested. The XMP needs the video length before the first byte is written, so it is
+     * taken from the video's Content-Length or, if the CDN doesn't send one, a one-byte Range probe.
+     * @param stillFileName Name to save the still under as a plain image if it turns out not to be a JPEG
+     * @return The saved live photo, or null if the caller should fall back to temporary files
+     * @throws StillNotJpegException if the still can't carry the XMP; it has been saved as a plain image
+     *         by then and the video hasn't been requested
+     */
+    public File downloadLivePhoto(String imageUrl, String videoUrl, String fileName, String stillFileName)
+            throws StillNotJpegException {
+        // Each half is its own transfer, so the session totals move while the live photo streams in
+        String imageTransferId = newTransferId(imageUrl);
+        String videoTransferId = null;
+        File livePhoto = null;
+        boolean stillSaved = false;
+        // Open the still first: if it can't carry the XMP there is no point in requesting the video at all
+        try (Response imageResponse = newCall(buildMediaRequest(imageUrl)).execute()) {
+            if (!imageResponse.isSuccessful() || imageResponse.body() == null) {
+                Log.e(TAG, "Live photo image request failed. Response code: " + imageResponse.code());
+                return null;
+            }
+            BufferedSource imageSource = reportingProgress(imageResponse.body().source(), imageTransferId,
+                    imageResponse.body().contentLength());
+            MediaClassifier.MediaType stillType = MediaClassifier.classify(
+                    imageSource, imageResponse.header("Content-Type"), imageUrl);
+            if (stillType != MediaClassifier.MediaType.JPEG) {
+                // The XMP segment can only be embedded in a JPEG. The still is already on its way in,
+                // so keep it as a plain image rather than fetching it again
+                Log.w(TAG, "Live photo still is " + stillType + ", not JPEG: " + imageUrl);
+                File savedStill = null;
+                if (stillType != null) {
+                    try {
+                        long stillLength = imageResponse.body().contentLength();
+                        File destinationFile = saveBody(null, stillFileName, stillType, imageSource,
+                                stillLength, getExpectedMd5(imageResponse));
+                        if (publishDownloadedFile(destinationFile, stillLength)) {
+                            savedStill = destinationFile;
+                        }
+                    } catch (IOException | SecurityException e) {
+                        Log.e(TAG, "Error saving live photo still: " + e.getMessage());
+                    }
+                }
+                stillSaved = savedStill != null;
+                throw new StillNotJpegException(stillType, savedStill);
+            }
 
-                // For Android 10+ use MediaStore to ensure gallery visibility
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                    destinationFile = saveToMediaStore(fullFileName, response.body(), fileExtension);
+            // Then the video, whose length has to be known before anything is written
+            videoTransferId = newTransferId(videoUrl);
+            try (Response videoResponse = newCall(buildMediaRequest(videoUrl)).execute()) {
+                if (!videoResponse.isSuccessful() || videoResponse.body() == null) {
+                    Log.e(TAG, "Live photo video request failed. Response code: " + videoResponse.code());
+                    return null;
+                }
+                long contentLength = videoResponse.body().contentLength();
+                final long videoLength = contentLength >= 0 ? contentLength : probeContentLength(videoUrl);
+                if (videoLength <= 0) {
+                    Log.w(TAG, "Video length unknown, can't stream live photo: " + videoUrl);
+                    return null;
                 }
 
-                // If MediaStore save failed or we're on older Android, fall back to file-based save
-                if (destinationFile == null) {
-                    destinationFile = saveToFileSystem(url, fullFileName, response.body());
+                long imageLength = imageResponse.body().contentLength();
+                BufferedSource videoSource = reportingProgress(videoResponse.body().source(), videoTransferId,
+                        videoLength);
+                try (StorageReservations.Reservation reservation = StorageReservations.reserve(
+                        galleryVolumeDirectory(), Math.max(imageLength, 0) + videoLength)) {
+                    MediaMetadata stillMetadata = MediaMetadata.probeImage(imageSource, MediaClassifier.MediaType.JPEG);
+                    livePhoto = saveToGallery(fileName, MediaClassifier.MediaType.JPEG, stillMetadata, outputStream ->
+                            LivePhotoCreator.createLivePhoto(imageSource, imageLength, videoSource, videoLength, outputStream));
+                    return livePhoto;
                 }
+            }
+        } catch (StillNotJpegException e) {
+            throw e;
+        } catch (IOException | SecurityException e) {
+            Log.e(TAG, "Error streaming live photo: " + e.getMessage());
+            return null;
+        } finally {
+            if (callback != null) {
+                callback.onTransferEnded(imageTransferId, livePhoto != null || stillSaved);
+                if (videoTransferId != null) {
+                    callback.onTransferEnded(videoTransferId, livePhoto != null);
+                }
+            }
+        }
+    }
 
-                if (destinationFile != null && destinationFile.exists()) {
-                    Log.d(TAG, "Downloaded file: " + destinationFile.getAbsolutePath());
-                    Log.d(TAG, "Total bytes: " + (response.body() != null ? response.body().contentLength() : 0));
-                    Log.d(TAG, "File exists: " + destinationFile.exists());
-                    Log.d(TAG, "File size: " + destinationFile.length());
+    /**
+     * Reports every read from a response body under {@code progressItemId}, for bodies that are
+     * consumed by something other than {@link #copyAndVerify}
+     */
+    private BufferedSource reportingProgress(BufferedSource source, String progressItemId, long contentLength) {
+        if (callback == null) {
+            return source;
+        }
+        return Okio.buffer(new ForwardingSource(source) {
+            private long totalBytesRead;
 
-                    // For files that aren't already in MediaStore (like those saved to app's private directory),
-                    // we still need to notify MediaStore
-                    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || isFileInPrivateDirectory(destinationFile)) {
-                        notifyMediaStore(destinationFile);
-                    }
+            @Override
+            public long read(Buffer sink, long byteCount) throws IOException {
+                long bytesRead = super.read(sink, byteCount);
+                if (bytesRead > 0) {
+                    totalBytesRead += bytesRead;
+                    callback.onDownloadProgressUpdate(progressItemId, totalBytesRead, contentLength);
+                }
+                return bytesRead;
+            }
+        });
+    }
 
-                    // 通知回调下载完成
-                    if (callback != null) {
-                        callback.onFileDownloaded(destinationFile.getAbsolutePath());
-                    }
+    /**
+     * Fills a new gallery entry, see {@link #saveToGallery}
+     */
+    public interface GalleryWriter {
+        /**
+         * @return true if the content was written completely, false to discard the entry
+         */
+        boolean writeTo(FileOutputStream outputStream) throws IOException;
+    }
 
-                    if (response.body() != null) {
-                        response.body().close();
-                    }
+    /**
+     * Creates a gallery entry under xhs/ and lets {@code writer} fill it. On Android 10+ the entry is
+     * inserted as pending, written through its file descriptor and published with a single update
+     * once the writer succeeds, so the gallery never sees a partial file and no media scan is needed.
+     * Older versions write the file directly and scan it.
+     * @param metadata Dimensions etc. to store with the entry, may be null
+     * @return The saved file, or null if the writer failed
+     */
+    public File saveToGallery(String fileName, MediaClassifier.MediaType mediaType, MediaMetadata metadata,
+                              GalleryWriter writer) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return saveToPendingMediaStoreEntry(fileName, mediaType, metadata, writer);
+        }
 
-                    return true;
+        // Always use public directory with "xhs" subfolder, or the app's own one if that's unavailable
+        File destinationDir;
+        File publicDir = Environment.getExternalStoragePublicDirectory(
+                mediaType.isVideo() ? Environment.DIRECTORY_MOVIES : Environment.DIRECTORY_PICTURES);
+        if (publicDir != null) {
+            destinationDir = new File(publicDir, "xhs");
+        } else {
+            destinationDir = context.getExternalFilesDir(Environment.DIRECTORY_PICTURES);
+        }
+        if (!destinationDir.exists()) {
+            destinationDir.mkdirs();
+        }
+
+        File destinationFile = new File(destinationDir, fileName);
+        boolean written = false;
+        try (FileOutputStream outputStream = new FileOutputStream(destinationFile)) {
+            written = writer.writeTo(outputStream);
+        } finally {
+            if (!written && destinationFile.exists() && !destinationFile.delete()) {
+                Log.w(TAG, "Failed to delete incomplete file: " + destinationFile.getAbsolutePath());
+            }
+        }
+        if (!written) {
+            return null;
+        }
+        notifyMediaStore(destinationFile);
+        return destinationFile;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private File saveToPendingMediaStoreEntry(String fileName, MediaClassifier.MediaType mediaType,
+                                              MediaMetadata metadata, GalleryWriter writer) throws IOException {
+        ContentResolver contentResolver = context.getContentResolver();
+        Uri collectionUri;
+        String relativePath;
+        if (mediaType.isVideo()) {
+            collectionUri = MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
+            relativePath = Environment.DIRECTORY_MOVIES + File.separator + "xhs";
+        } else {
+            collectionUri = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
+            relativePath = Environment.DIRECTORY_PICTURES + File.separator + "xhs";
+        }
+
+        // 删除已存在的同名文件，以避免重复文件
+        deleteExistingFilesInMediaStore(contentResolver, collectionUri, fileName, relativePath);
+
+        // Pending entries are hidden from other apps until published
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.MediaColumns.DISPLAY_NAME, fileName);
+        values.put(MediaStore.MediaColumns.MIME_TYPE, mediaType.mimeType);
+        values.put(MediaStore.MediaColumns.RELATIVE_PATH, relativePath);
+        values.put(MediaStore.MediaColumns.IS_PENDING, 1);
+        if (metadata != null) {
+            metadata.putInto(values);
+        }
+
+        Uri uri = contentResolver.insert(collectionUri, values);
+        if (uri == null) {
+            throw new IOException("MediaStore insert failed for " + fileName);
+        }
+
+        boolean published = false;
+        try {
+            ParcelFileDescriptor pfd = contentResolver.openFileDescriptor(uri, "w");
+            if (pfd == null) {
+                throw new IOException("Unable to open " + uri + " for writing");
+            }
+            boolean written;
+            try (FileOutputStream outputStream = new ParcelFileDescriptor.AutoCloseOutputStream(pfd)) {
+                written = writer.writeTo(outputStream);
+            }
+            if (!written) {
+                return null;
+            }
+
+            ContentValues publish = new ContentValues();
+            publish.put(MediaStore.MediaColumns.IS_PENDING, 0);
+            contentResolver.update(uri, publish, null, null);
+            published = true;
+        } finally {
+            if (!published) {
+                try {
+                    contentResolver.delete(uri, null, null);
+                } catch (Exception deleteEx) {
+                    Log.e(TAG, "Error deleting pending MediaStore entry: " + deleteEx.getMessage());
                 }
-            } else {
-                Log.e(TAG, "Download failed. Response code: " + response.code());
-                if (response.body() != null) {
-                    response.body().close();
+            }
+        }
+        return getFileFromUri(uri);
+    }
+
+    /**
+     * Asks the server for the first byte only and reads the full length from Content-Range
+     * @return The resource length, or -1 if the server doesn't support range requests
+     */
+    private long probeContentLength(String url) {
+        Request request = buildMediaRequest(url).newBuilder()
+                .header("Range", "bytes=0-0")
+                .build();
+        try (Response response = newCall(request).execute()) {
+            String contentRange = response.header("Content-Range");
+            if (response.code() == 206 && contentRange != null) {
+                // e.g. "bytes 0-0/1234567"
+                String total = contentRange.substring(contentRange.lastIndexOf('/') + 1).trim();
+                if (!total.equals("*")) {
+                    return Long.parseLong(total);
                 }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Range probe failed for " + url + ": " + e.getMessage());
+        }
+        return -1;
+    }
 
-                // Notify the callback about the download error with the original URL
+    /**
+     * Aborts every transfer this downloader is running and makes pending retries give up.
+     * Partially written files are removed by the usual integrity cleanup.
+     */
+    public void cancel() {
+        cancelled = true;
+        synchronized (calls) {
+            for (Call call : calls) {
+                call.cancel();
+            }
+        }
+    }
+
+    private Call newCall(Request request) {
+        Call call = httpClient.newCall(request);
+        calls.add(call);
+        if (cancelled) {
+            call.cancel();
+        }
+        return call;
+    }
+
+    private Request buildMediaRequest(String url) {
+        return new Request.Builder()
+                .url(url)
+                .addHeader("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/91.0.4472.124 Safari/537.36")
+                .addHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=1.0,image/avif,image/webp,image/apng,*/*;q=1.0")
+                .addHeader("Referer", "https://www.xiaohongshu.com/")
+                .build();
+    }
+
+    /**
+     * Copies a file another request for the same resource has just downloaded into this request's
+     * destination, so identical concurrent requests share one network transfer
+     * @return true if the copy was saved and reported, false if the caller should download it itself
+     */
+    private boolean copySharedDownload(File sharedFile, String url, String fileName) {
+        try (BufferedSource source = Okio.buffer(Okio.source(sharedFile))) {
+            MediaClassifier.MediaType mediaType = MediaClassifier.classify(source, null, url);
+            if (buildFullFileName(fileName, mediaType).equals(sharedFile.getName())) {
+                // Both requests resolve to the same file; the leader has already written it
+                Log.d(TAG, "Shared download already saved as " + sharedFile.getAbsolutePath());
                 if (callback != null) {
-                    callback.onDownloadError("Download failed. Response code: " + response.code(), url);
+                    callback.onFileDownloaded(sharedFile.getAbsolutePath(), sourceUrl);
                 }
+                return true;
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Error downloading file: " + e.getMessage());
-            e.printStackTrace();
 
-            // Notify the callback about the download error with the original URL
-            if (callback != null) {
-                callback.onDownloadError("IO Error downloading file: " + e.getMessage(), url);
+            // A local copy isn't network traffic, so it reports no progress
+            File destinationFile = saveBody(null, fileName, mediaType, source, sharedFile.length(), null);
+            Log.d(TAG, "Copied shared download " + sharedFile.getAbsolutePath() + " for " + url);
+            return publishDownloadedFile(destinationFile, sharedFile.length());
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Error copying shared download: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Saves a file that is already on the device (e.g. one half of a live photo pair that couldn't be
+     * muxed) as regular media, without going back to the network. Before Android 10 it is moved into
+     * Pictures/xhs (Movies/xhs for a video) when both are on the same volume; otherwise it is streamed
+     * through the usual save path.
+     * @param localFile The file to save; it may have been moved away when this returns
+     * @param fileName The requested file name, its extension is replaced by the sniffed one
+     * @return true if the file was saved and reported
+     */
+    public boolean promoteLocalFile(File localFile, String fileName) {
+        if (localFile == null || !localFile.isFile()) {
+            return false;
+        }
+        MediaClassifier.MediaType mediaType = MediaClassifier.sniff(localFile);
+        if (mediaType == null) {
+            mediaType = MediaClassifier.guessFromUrl(fileName);
+        }
+        long length = localFile.length();
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            File movedFile = moveToPublicDirectory(localFile, buildFullFileName(fileName, mediaType), mediaType);
+            if (movedFile != null) {
+                Log.d(TAG, "Moved " + localFile.getAbsolutePath() + " to " + movedFile.getAbsolutePath());
+                return publishDownloadedFile(movedFile, length);
+            }
+        }
+
+        try (BufferedSource source = Okio.buffer(Okio.source(localFile))) {
+            File destinationFile = saveBody(null, fileName, mediaType, source, length, null);
+            Log.d(TAG, "Copied " + localFile.getAbsolutePath() + " to the gallery");
+            return publishDownloadedFile(destinationFile, length);
+        } catch (IOException | SecurityException e) {
+            Log.e(TAG, "Error saving local file: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Renames a file into Pictures/xhs, or Movies/xhs for a video, which only works for a file on the
+     * same volume. Like every other save, a file of the same name is replaced rather than kept alongside.
+     * @return The moved file, or null if it couldn't be moved
+     */
+    private File moveToPublicDirectory(File file, String fullFileName, MediaClassifier.MediaType mediaType) {
+        File publicDir = Environment.getExternalStoragePublicDirectory(
+                mediaType.isVideo() ? Environment.DIRECTORY_MOVIES : Environment.DIRECTORY_PICTURES);
+        if (publicDir == null) {
+            return null;
+        }
+        File destinationDir = new File(publicDir, "xhs");
+        if (!destinationDir.exists() && !destinationDir.mkdirs()) {
+            return null;
+        }
+        File destinationFile = new File(destinationDir, fullFileName);
+        try {
+            // 检查是否有同名文件，如果有则删除
+            if (destinationFile.exists()) {
+                boolean deleted = destinationFile.delete();
+                Log.d(TAG, "Deleted existing file: " + destinationFile.getAbsolutePath() + ", success: " + deleted);
             }
+            return file.renameTo(destinationFile) ? destinationFile : null;
         } catch (SecurityException e) {
-            Log.e(TAG, "Security exception while downloading file: " + e.getMessage());
-            e.printStackTrace();
+            Log.d(TAG, "Cannot move into public directory: " + e.getMessage());
+            return null;
+        }
+    }
 
-            // Notify the callback about the download error with the original URL
-            if (callback != null) {
-                callback.onDownloadError("Security exception while downloading file: " + e.getMessage(), url);
+    /**
+     * Builds the saved file name: the requested base name with the extension of the detected media type
+     */
+    private String buildFullFileName(String fileName, MediaClassifier.MediaType mediaType) {
+        // 从原始文件名中提取基础名称（去掉扩展名）
+        String baseFileName = fileName;
+        int lastDotIndex = fileName.lastIndexOf('.');
+        if (lastDotIndex > 0 && lastDotIndex < fileName.length() - 1) {
+            baseFileName = fileName.substring(0, lastDotIndex);
+            Log.d(TAG, "Original filename has extension: " + fileName.substring(lastDotIndex + 1).toLowerCase() + 
+                  ", but using content-sniffed extension: " + mediaType.extension);
+        }
+
+        return "xhs_" + baseFileName + "." + mediaType.extension;
+    }
+
+    /**
+     * Writes a body to its public destination: MediaStore on Android 10+, the filesystem otherwise
+     * @param progressItemId The transfer to report progress under, or null for a local copy
+     * @return The saved file, or null if it couldn't be saved
+     */
+    private File saveBody(String progressItemId, String fileName, MediaClassifier.MediaType mediaType, BufferedSource source,
+                          long contentLength, String expectedMd5) throws IOException {
+        String fullFileName = buildFullFileName(fileName, mediaType);
+
+        File destinationFile = null;
+
+        // Admit the transfer only if the volume can hold it alongside every other in-flight download
+        try (StorageReservations.Reservation reservation = StorageReservations.reserve(
+                galleryVolumeDirectory(), contentLength)) {
+            // For Android 10+ use MediaStore to ensure gallery visibility
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                destinationFile = saveToMediaStore(progressItemId, fullFileName, source, contentLength, expectedMd5, mediaType, reservation);
+            }
+
+            // If MediaStore save failed or we're on older Android, fall back to file-based save
+            if (destinationFile == null) {
+                destinationFile = saveToFileSystem(progressItemId, fullFileName, source, contentLength, expectedMd5, reservation);
             }
         }
+        return destinationFile;
+    }
 
-        return false;
+    /**
+     * A directory on the volume gallery entries end up on. MediaStore writes to the primary external
+     * volume, as do the public directories used before Android 10, and the app's external files
+     * directory lives there too.
+     * @return The directory, or null if the volume isn't mounted
+     */
+    private File galleryVolumeDirectory() {
+        return context.getExternalFilesDir(null);
     }
-    
+
+    /**
+     * Makes a saved file visible in the gallery and reports it to the callback
+     * @return true if the file exists and was reported
+     */
+    private boolean publishDownloadedFile(File destinationFile, long totalBytes) {
+        if (destinationFile == null || !destinationFile.exists()) {
+            return false;
+        }
+        Log.d(TAG, "Downloaded file: " + destinationFile.getAbsolutePath());
+        Log.d(TAG, "Total bytes: " + totalBytes);
+        Log.d(TAG, "File exists: " + destinationFile.exists());
+        Log.d(TAG, "File size: " + destinationFile.length());
+
+        // For files that aren't already in MediaStore (like those saved to app's private directory),
+        // we still need to notify MediaStore
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || isFileInPrivateDirectory(destinationFile)) {
+            notifyMediaStore(destinationFile);
+        }
+
+        // 通知回调下载完成
+        if (callback != null) {
+            callback.onFileDownloaded(destinationFile.getAbsolutePath(), sourceUrl);
+        }
+        return true;
+    }
+
     /**
      * Save file directly to MediaStore (Android 10+ with scoped storage support)
      */
     @RequiresApi(api = Build.VERSION_CODES.Q)
-    private File saveToMediaStore(String fileName, ResponseBody body, String fileExtension) {
+    private File saveToMediaStore(String progressItemId, String fileName, BufferedSource source, long contentLength, String expectedMd5,
+                                  MediaClassifier.MediaType mediaType, StorageReservations.Reservation reservation)
+            throws IOException {
+        // Once the copy has started the source is spent, so the fallback would have nothing to save
+        boolean bodyConsumed = false;
         try {
             ContentResolver contentResolver = context.getContentResolver();
             
             // Determine the collection based on file type and use MediaStore directory + xhs subfolder
             Uri collectionUri;
             String relativePath;
-            if (isImageFile(fileExtension)) {
-                collectionUri = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
-                relativePath = Environment.DIRECTORY_PICTURES + File.separator + "xhs";
-            } else if (isVideoFile(fileExtension)) {
+            // The classifier only ever answers with an image or a video type
+            if (mediaType.isVideo()) {
                 collectionUri = MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
                 relativePath = Environment.DIRECTORY_MOVIES + File.separator + "xhs";
             } else {
-                collectionUri = MediaStore.Downloads.EXTERNAL_CONTENT_URI;
-                relativePath = Environment.DIRECTORY_DOWNLOADS + File.separator + "xhs";
+                collectionUri = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
+                relativePath = Environment.DIRECTORY_PICTURES + File.separator + "xhs";
             }
             
             // 删除已存在的同名文件，以避免重复文件
@@ -183,39 +687,42 @@ public class FileDownloader {
             
             // 准备插入新文件 (we can now use the original filename since duplicates have been removed)
             ContentValues values = new ContentValues();
-            String mimeType = getMimeTypeForFileExtension(fileExtension);
             values.put(MediaStore.MediaColumns.DISPLAY_NAME, fileName);
-            values.put(MediaStore.MediaColumns.MIME_TYPE, mimeType);
+            values.put(MediaStore.MediaColumns.MIME_TYPE, mediaType.mimeType);
             values.put(MediaStore.MediaColumns.RELATIVE_PATH, relativePath);
+            // Filled in from the headers so the gallery doesn't have to scan the file for them:
+            // image sizes from the first bytes now, video metadata from its moov once the body is written
+            values.put(MediaStore.MediaColumns.IS_PENDING, 1);
+            MediaMetadata.Mp4Scanner videoScanner = null;
+            if (mediaType.isImage()) {
+                MediaMetadata imageMetadata = MediaMetadata.probeImage(source, mediaType);
+                if (imageMetadata != null) {
+                    imageMetadata.putInto(values);
+                }
+            } else if (mediaType.isIsoMedia()) {
+                videoScanner = new MediaMetadata.Mp4Scanner();
+            }
             
             Uri uri = contentResolver.insert(collectionUri, values);
             
             if (uri != null) {
-                try (OutputStream outputStream = contentResolver.openOutputStream(uri)) {
-                    if (outputStream != null && body != null) {
+                ParcelFileDescriptor pfd = contentResolver.openFileDescriptor(uri, "w");
+                try (OutputStream outputStream = pfd != null ? new ParcelFileDescriptor.AutoCloseOutputStream(pfd) : null) {
+                    if (outputStream != null) {
+                        // Reserve the blocks up front so large videos are written contiguously
+                        preallocate(pfd.getFileDescriptor(), contentLength, reservation);
+
                         // Write the response body to the content URI
-                        byte[] buffer = new byte[65536]; // 64KB buffer
-                        int bytesRead;
-                        long totalBytesRead = 0;
-                        long contentLength = body.contentLength();
-                        
-                        InputStream inputStream = body.byteStream();
-                        while ((bytesRead = inputStream.read(buffer)) != -1) {
-                            outputStream.write(buffer, 0, bytesRead);
-                            totalBytesRead += bytesRead;
-                            
-                            // Report progress updates less frequently to avoid UI thread contention
-                            if (callback != null && contentLength > 0) {
-                                // Only report progress if we have a content length and it's not 0
-                                // Limit progress updates to once per 256KB to avoid excessive callbacks
-                                if (totalBytesRead % 262144 == 0 || totalBytesRead == contentLength) { // 256KB = 262144 bytes
-                                    callback.onDownloadProgressUpdate(totalBytesRead, contentLength);
-                                }
-                            }
-                        }
-                        
-                        inputStream.close();
+                        bodyConsumed = true;
+                        copyAndVerify(source, contentLength, expectedMd5, outputStream, videoScanner, progressItemId);
                         outputStream.close();
+
+                        ContentValues publish = new ContentValues();
+                        publish.put(MediaStore.MediaColumns.IS_PENDING, 0);
+                        if (videoScanner != null && videoScanner.result() != null) {
+                            videoScanner.result().putInto(publish);
+                        }
+                        contentResolver.update(uri, publish, null, null);
                         
                         // File is now in MediaStore, find the actual file path
                         return getFileFromUri(uri);
@@ -228,9 +735,23 @@ public class FileDownloader {
                     } catch (Exception deleteEx) {
                         Log.e(TAG, "Error deleting partial MediaStore entry: " + deleteEx.getMessage());
                     }
+                    // A body that was read even partly must be re-fetched rather than saved elsewhere,
+                    // and a full volume won't have room in the fallback location either
+                    if (bodyConsumed || e instanceof StorageReservations.InsufficientSpaceException) {
+                        throw e;
+                    }
                 }
             }
+        } catch (IOException e) {
+            if (bodyConsumed || e instanceof StorageReservations.InsufficientSpaceException) {
+                throw e;
+            }
+            Log.e(TAG, "Error saving to MediaStore: " + e.getMessage());
+            e.printStackTrace();
         } catch (Exception e) {
+            if (bodyConsumed) {
+                throw new IOException("Error saving to MediaStore: " + e.getMessage(), e);
+            }
             Log.e(TAG, "Error saving to MediaStore: " + e.getMessage());
             e.printStackTrace();
         }
@@ -241,7 +762,8 @@ public class FileDownloader {
     /**
      * Save file to filesystem (fallback for older Android versions or MediaStore failures)
      */
-    private File saveToFileSystem(String url, String fileName, ResponseBody body) throws IOException {
+    private File saveToFileSystem(String progressItemId, String fileName, BufferedSource source, long contentLength,
+                                  String expectedMd5, StorageReservations.Reservation reservation) throws IOException {
         // Always use public directory with "xhs" subfolder
         File destinationDir;
         // Try to use public Pictures directory first (requires permissions)
@@ -299,84 +821,20 @@ public class FileDownloader {
         Log.d(TAG, "Saving file to: " + destinationFile.getAbsolutePath());
         
         // Write the response body to the file
-        if (body != null) {
-            InputStream inputStream = body.byteStream();
-            OutputStream outputStream = new FileOutputStream(destinationFile);
-            
-            // Increased buffer size for better throughput (64KB instead of 4KB)
-            byte[] buffer = new byte[65536]; // 64KB buffer
-            int bytesRead;
-            long totalBytesRead = 0;
-            long contentLength = body.contentLength();
-            
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
-                totalBytesRead += bytesRead;
-                
-                // Report progress updates less frequently to avoid UI thread contention
-                if (callback != null && contentLength > 0) {
-                    // Only report progress if we have a content length and it's not 0
-                    // Limit progress updates to once per 256KB to avoid excessive callbacks
-                    if (totalBytesRead % 262144 == 0 || totalBytesRead == contentLength) { // 256KB = 262144 bytes
-                        callback.onDownloadProgressUpdate(totalBytesRead, contentLength);
-                    }
-                }
+        try (FileOutputStream outputStream = new FileOutputStream(destinationFile)) {
+            preallocate(outputStream.getFD(), contentLength, reservation);
+            copyAndVerify(source, contentLength, expectedMd5, outputStream, null, progressItemId);
+        } catch (IntegrityException | StorageReservations.InsufficientSpaceException e) {
+            // Don't leave a truncated file behind for the gallery to pick up
+            if (destinationFile.exists() && !destinationFile.delete()) {
+                Log.w(TAG, "Failed to delete corrupted file: " + destinationFile.getAbsolutePath());
             }
-            
-            inputStream.close();
-            outputStream.close();
+            throw e;
         }
         
         return destinationFile;
     }
     
-    /**
-     * Helper method to get file extension MIME type
-     */
-    private String getMimeTypeForFileExtension(String fileExtension) {
-        if (fileExtension == null) return "application/octet-stream";
-        
-        String ext = fileExtension.toLowerCase();
-        switch (ext) {
-            case "jpg":
-            case "jpeg":
-                return "image/jpeg";
-            case "png":
-                return "image/png";
-            case "gif":
-                return "image/gif";
-            case "mp4":
-                return "video/mp4";
-            case "mov":
-                return "video/quicktime";
-            case "webp":
-                return "image/webp";
-            default:
-                return "application/octet-stream";
-        }
-    }
-    
-    /**
-     * Helper method to check if file extension is for an image
-     */
-    private boolean isImageFile(String fileExtension) {
-        if (fileExtension == null) return false;
-        
-        String ext = fileExtension.toLowerCase();
-        return ext.equals("jpg") || ext.equals("jpeg") || ext.equals("png") || 
-               ext.equals("gif") || ext.equals("webp");
-    }
-    
-    /**
-     * Helper method to check if file extension is for a video
-     */
-    private boolean isVideoFile(String fileExtension) {
-        if (fileExtension == null) return false;
-        
-        String ext = fileExtension.toLowerCase();
-        return ext.equals("mp4") || ext.equals("mov");
-    }
-    
     /**
      * Helper method to check if file is in app's private directory
      */
@@ -448,115 +906,244 @@ public class FileDownloader {
      * @return true if download was successful, false otherwise
      */
     public boolean downloadFileToInternalStorage(String url, String fileName, String timestamp) {
+        DownloadCoalescer.Flight flight = DownloadCoalescer.join(url);
+        String transferId = newTransferId(url);
+        File downloadedFile = null;
         try {
-            // Create the request
-            Request request = new Request.Builder()
-                    .url(url)
-                    .addHeader("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/91.0.4472.124 Safari/537.36")
-                    .addHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=1.0,image/avif,image/webp,image/apng,*/*;q=1.0")
-                    .addHeader("Referer", "https://www.xiaohongshu.com/")
-                    .build();
-
-            // Execute the request
-            Response response = httpClient.newCall(request).execute();
+            if (!flight.isLeader()) {
+                File sharedFile = flight.await();
+                if (sharedFile != null && copySharedDownloadToInternalStorage(sharedFile, fileName, timestamp)) {
+                    return true;
+                }
+                Log.d(TAG, "Shared download unavailable, downloading separately: " + url);
+            }
 
-            if (response.isSuccessful() && response.body() != null) {
-                // Get the file extension from the URL or Content-Type header
-                String fileExtension = getFileExtension(response, url);
-                String fullFileName = "xhs_" + timestamp + "_" + fileName;
-
-                // 生成唯一文件名（如果文件已存在，使用 xxx_(1).jpg 格式）
-                File internalDir = context.getExternalFilesDir(null);
-                String uniqueFileName = getUniqueFileName(internalDir, fullFileName);
-                File destinationFile = new File(internalDir, uniqueFileName);
-
-                Log.d(TAG, "Saving file to internal storage: " + destinationFile.getAbsolutePath());
-
-                // Write the response body to the file
-                ResponseBody body = response.body();
-                if (body != null) {
-                    InputStream inputStream = body.byteStream();
-                    OutputStream outputStream = new FileOutputStream(destinationFile);
-
-                    // Increased buffer size for better throughput (64KB instead of 4KB)
-                    byte[] buffer = new byte[65536]; // 64KB buffer
-                    int bytesRead;
-                    long totalBytesRead = 0;
-                    long contentLength = body.contentLength();
-
-                    while ((bytesRead = inputStream.read(buffer)) != -1) {
-                        outputStream.write(buffer, 0, bytesRead);
-                        totalBytesRead += bytesRead;
+            for (int attempt = 1; attempt <= MAX_DOWNLOAD_ATTEMPTS; attempt++) {
+                try {
+                    downloadedFile = downloadFileToInternalStorageOnce(url, transferId, fileName, timestamp);
+                    return downloadedFile != null;
+                } catch (IntegrityException e) {
+                    if (cancelled) {
+                        Log.d(TAG, "Download cancelled: " + url);
+                        return false;
                     }
+                    Log.w(TAG, "Integrity check failed for " + url + " (attempt " + attempt + "/" +
+                            MAX_DOWNLOAD_ATTEMPTS + "): " + e.getMessage());
+                } catch (IOException e) {
+                    Log.e(TAG, "Error downloading file: " + e.getMessage());
+                    e.printStackTrace();
+                    return false;
+                } catch (SecurityException e) {
+                    Log.e(TAG, "Security exception while downloading file: " + e.getMessage());
+                    e.printStackTrace();
+                    return false;
+                }
+            }
+            return false;
+        } finally {
+            if (callback != null) {
+                callback.onTransferEnded(transferId, downloadedFile != null);
+            }
+            flight.complete(downloadedFile);
+        }
+    }
 
-                    inputStream.close();
-                    outputStream.close();
+    /**
+     * Copies a file another request for the same resource has just downloaded into internal storage
+     * @return true if the copy was saved, false if the caller should download it itself
+     */
+    private boolean copySharedDownloadToInternalStorage(File sharedFile, String fileName, String timestamp) {
+        try (BufferedSource source = Okio.buffer(Okio.source(sharedFile))) {
+            File destinationFile = saveToInternalStorage(source, sharedFile.length(), null,
+                    "xhs_" + timestamp + "_" + fileName, null);
+            Log.d(TAG, "Copied shared download " + sharedFile.getAbsolutePath() + " to " + destinationFile.getAbsolutePath());
+            return true;
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Error copying shared download: " + e.getMessage());
+            return false;
+        }
+    }
 
-                    Log.d(TAG, "Downloaded file to internal storage: " + destinationFile.getAbsolutePath());
-                    Log.d(TAG, "Total bytes: " + totalBytesRead);
-                    Log.d(TAG, "File exists: " + destinationFile.exists());
-                    Log.d(TAG, "File size: " + destinationFile.length());
+    /**
+     * @return The saved file, or null if the download failed
+     */
+    private File downloadFileToInternalStorageOnce(String url, String progressItemId, String fileName,
+                                                   String timestamp) throws IOException {
+        // Create the request
+        Request request = buildMediaRequest(url);
 
-                    return true;
-                }
+        // Execute the request
+        try (Response response = newCall(request).execute()) {
+            if (response.isSuccessful() && response.body() != null) {
+                return saveToInternalStorage(response.body().source(), response.body().contentLength(),
+                        getExpectedMd5(response), "xhs_" + timestamp + "_" + fileName, progressItemId);
             } else {
                 Log.e(TAG, "Download failed. Response code: " + response.code());
-                if (response.body() != null) {
-                    response.body().close();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Writes a body to a uniquely named file in the app's external files directory
+     * @param progressItemId The item to report progress under, or null to stay quiet
+     */
+    private File saveToInternalStorage(BufferedSource source, long contentLength, String expectedMd5,
+                                       String fullFileName, String progressItemId) throws IOException {
+        // 生成唯一文件名（如果文件已存在，使用 xxx_(1).jpg 格式）
+        File internalDir = context.getExternalFilesDir(null);
+        String uniqueFileName = getUniqueFileName(internalDir, fullFileName);
+        File destinationFile = new File(internalDir, uniqueFileName);
+
+        Log.d(TAG, "Saving file to internal storage: " + destinationFile.getAbsolutePath());
+
+        // Write the response body to the file
+        long totalBytesRead;
+        try (StorageReservations.Reservation reservation = StorageReservations.reserve(internalDir, contentLength);
+             FileOutputStream outputStream = new FileOutputStream(destinationFile)) {
+            preallocate(outputStream.getFD(), contentLength, reservation);
+            totalBytesRead = copyAndVerify(source, contentLength, expectedMd5, outputStream, null, progressItemId);
+        } catch (IntegrityException | StorageReservations.InsufficientSpaceException e) {
+            if (destinationFile.exists() && !destinationFile.delete()) {
+                Log.w(TAG, "Failed to delete corrupted file: " + destinationFile.getAbsolutePath());
+            }
+            throw e;
+        }
+
+        Log.d(TAG, "Downloaded file to internal storage: " + destinationFile.getAbsolutePath());
+        Log.d(TAG, "Total bytes: " + totalBytesRead);
+        Log.d(TAG, "File exists: " + destinationFile.exists());
+        Log.d(TAG, "File size: " + destinationFile.length());
+
+        return destinationFile;
+    }
+
+    /**
+     * Copies a body to the output stream while verifying it in the same pass:
+     * the byte count is checked against Content-Length and, when the CDN sends an MD5 ETag,
+     * the digest is computed incrementally and compared once the body ends.
+     * Segments are moved from the buffered source straight into the target sink,
+     * so no per-file copy buffer is allocated and segment memory goes back to Okio's pool.
+     * @param videoScanner Sees every byte on its way out to read the video metadata, may be null
+     * @param progressItemId The item to report progress under, or null to stay quiet
+     * @return The number of bytes written
+     * @throws IntegrityException if the transfer was cut short or the checksum doesn't match
+     */
+    @VisibleForTesting
+    long copyAndVerify(BufferedSource source, long contentLength, String expectedMd5, OutputStream outputStream,
+                               MediaMetadata.Mp4Scanner videoScanner, String progressItemId) throws IOException {
+        HashingSink hashingSink = expectedMd5 != null ? HashingSink.md5(Okio.sink(outputStream)) : null;
+        BufferedSink sink = Okio.buffer(hashingSink != null ? hashingSink : Okio.sink(outputStream));
+        long totalBytesRead = 0;
+
+        try (source) {
+            while (true) {
+                long bytesRead;
+                try {
+                    bytesRead = source.read(sink.getBuffer(), TRANSFER_CHUNK_SIZE);
+                } catch (IOException e) {
+                    // The connection dropped mid-body; what we have is a truncated file
+                    throw new IntegrityException("Transfer interrupted after " + totalBytesRead + " bytes: " + e.getMessage());
+                }
+                if (bytesRead == -1) {
+                    break;
+                }
+                if (videoScanner != null) {
+                    Buffer buffer = sink.getBuffer();
+                    videoScanner.update(buffer, buffer.size() - bytesRead, bytesRead);
+                }
+
+                // Hand full segments to the target right away instead of accumulating the body in memory
+                sink.emitCompleteSegments();
+                totalBytesRead += bytesRead;
+
+                // Every read is reported; the UI samples the totals on its own schedule (see TransferProgress)
+                if (progressItemId != null && callback != null) {
+                    callback.onDownloadProgressUpdate(progressItemId, totalBytesRead, contentLength);
                 }
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Error downloading file: " + e.getMessage());
-            e.printStackTrace();
-        } catch (SecurityException e) {
-            Log.e(TAG, "Security exception while downloading file: " + e.getMessage());
-            e.printStackTrace();
         }
+        sink.flush();
 
-        return false;
+        if (contentLength >= 0 && totalBytesRead != contentLength) {
+            throw new IntegrityException("Expected " + contentLength + " bytes but received " + totalBytesRead);
+        }
+        if (hashingSink != null) {
+            String actualMd5 = hashingSink.hash().hex();
+            if (!actualMd5.equalsIgnoreCase(expectedMd5)) {
+                throw new IntegrityException("MD5 mismatch: expected " + expectedMd5 + " but was " + actualMd5);
+            }
+        }
+        return totalBytesRead;
     }
-    
-    private String getFileExtension(Response response, String url) {
-        // First try to get extension from Content-Type header
-        String contentType = response.header("Content-Type");
-        if (contentType != null) {
-            if (contentType.contains("video")) {
-                if (contentType.contains("mp4")) return "mp4";
-                else if (contentType.contains("quicktime")) return "mov";
-                else return "mp4"; // default video format
-            } else if (contentType.contains("image")) {
-                if (contentType.contains("jpeg")) return "jpg";
-                else if (contentType.contains("png")) return "png";
-                else if (contentType.contains("webp")) return "webp";
-                else if (contentType.contains("gif")) return "gif";
-                else return "jpg"; // default image format
+
+    /**
+     * Preallocates the target file so the filesystem can lay it out contiguously and so running out
+     * of space fails before any bytes are transferred. Once allocated, the filesystem accounts for the
+     * space itself and the in-flight reservation is released.
+     */
+    private void preallocate(FileDescriptor fd, long length, StorageReservations.Reservation reservation)
+            throws StorageReservations.InsufficientSpaceException {
+        if (length <= 0) {
+            return;
+        }
+        try {
+            Os.posix_fallocate(fd, 0, length);
+            reservation.release();
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new StorageReservations.InsufficientSpaceException(length, 0);
             }
+            // Not every filesystem (e.g. FUSE-backed MediaStore on some devices) supports fallocate
+            Log.d(TAG, "Preallocation not supported: " + e.getMessage());
         }
-        
-        // If Content-Type doesn't help, try to extract from URL
-        if (url.toLowerCase().contains(".jpg") || url.toLowerCase().contains(".jpeg")) {
-            return "jpg";
-        } else if (url.toLowerCase().contains(".png")) {
-            return "png";
-        } else if (url.toLowerCase().contains(".gif")) {
-            return "gif";
-        } else if (url.toLowerCase().contains(".mp4")) {
-            return "mp4";
-        } else if (url.toLowerCase().contains(".mov")) {
-            return "mov";
-        } else if (url.toLowerCase().contains(".webp")) {
-            return "webp";
+    }
+
+    /**
+     * Extracts an MD5 checksum from the ETag header. Only strong ETags that are a plain
+     * 32-digit hex string are trusted, and only when the body wasn't re-encoded in transit.
+     * @return The expected MD5 in hex, or null if the ETag can't be used for verification
+     */
+    private String getExpectedMd5(Response response) {
+        String etag = response.header("ETag");
+        if (etag == null || etag.startsWith("W/")) {
+            return null;
         }
-        
-        // Default extensions based on URL patterns
-        if (url.contains("sns-img")) {
-            return "jpg"; // Images from XHS typically
-        } else if (url.contains("video")) {
-            return "mp4"; // Videos from XHS typically
+        Response networkResponse = response.networkResponse();
+        if (networkResponse != null) {
+            String contentEncoding = networkResponse.header("Content-Encoding");
+            if (contentEncoding != null && !contentEncoding.equalsIgnoreCase("identity")) {
+                return null;
+            }
+        }
+        String value = etag.replace("\"", "").trim();
+        return MD5_ETAG_PATTERN.matcher(value).matches() ? value : null;
+    }
+
+    /**
+     * Signals that a downloaded body is incomplete or corrupted and should be fetched again
+     */
+    private static class IntegrityException extends IOException {
+        IntegrityException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The still of a live photo pair isn't a JPEG, so the pair can't be muxed at all
+     */
+    public static class StillNotJpegException extends IOException {
+        // What the still was sniffed as, null if unrecognised
+        public final MediaClassifier.MediaType stillType;
+        // The still saved as a plain image, or null if that failed too
+        public final File savedStill;
+
+        StillNotJpegException(MediaClassifier.MediaType stillType, File savedStill) {
+            super("Live photo still is " + stillType + ", not JPEG");
+            this.stillType = stillType;
+            this.savedStill = savedStill;
         }
-        
-        // If all else fails, try to guess based on URL structure
-        return "jpg"; // Default to image format
     }
     
     /**
@@ -569,8 +1156,12 @@ public class FileDownloader {
         String filePath = file.getAbsolutePath();
         String publicPicturesPath = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES).getAbsolutePath();
         String publicDownloadsPath = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS).getAbsolutePath();
-        
-        if (filePath.startsWith(publicPicturesPath) || filePath.startsWith(publicDownloadsPath)) {
+        String publicMoviesPath = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MOVIES).getAbsolutePath();
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q && filePath.startsWith(publicMoviesPath)) {
+            // Videos only land in Movies/xhs before Android 10; a scan is all they need
+            fallbackMediaScan(file);
+        } else if (filePath.startsWith(publicPicturesPath) || filePath.startsWith(publicDownloadsPath)) {
             // File is in a public directory, so we should make it visible to MediaStore
             
             // For Android 10+ (API 29+), use MediaStore.insert() for better reliability
@@ -645,23 +1236,9 @@ public class FileDownloader {
      * Get the MIME type for a file based on its extension
      */
     private String getMimeTypeForFile(File file) {
-        String fileName = file.getName().toLowerCase();
-        if (fileName.endsWith(".jpg") || fileName.endsWith(".jpeg")) {
-            return "image/jpeg";
-        } else if (fileName.endsWith(".png")) {
-            return "image/png";
-        } else if (fileName.endsWith(".gif")) {
-            return "image/gif";
-        } else if (fileName.endsWith(".mp4")) {
-            return "video/mp4";
-        } else if (fileName.endsWith(".mov")) {
-            return "video/quicktime";
-        } else if (fileName.endsWith(".webp")) {
-            return "image/webp";
-        } else {
-            // Default to image/jpeg if unknown
-            return "image/jpeg";
-        }
+        MediaClassifier.MediaType mediaType = MediaClassifier.MediaType.fromFileName(file.getName());
+        // Default to image/jpeg if unknown
+        return mediaType != null ? mediaType.mimeType : "image/jpeg";
     }
     
     /**
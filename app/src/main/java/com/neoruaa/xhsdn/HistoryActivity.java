@@ -0,0 +1,123 @@
+package com.neoruaa.xhsdn;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.MenuItem;
+import android.view.View;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 下载历史：浏览所有已保存到 Pictures/xhs 和 Movies/xhs 的文件，按笔记分组.
+ * Nothing is read up front; a page is queried when the list gets near its end.
+ */
+public class HistoryActivity extends AppCompatActivity {
+    private static final int SPAN_COUNT = 3;
+
+    private HistoryAdapter adapter;
+    private GridLayoutManager layoutManager;
+    private TextView emptyText;
+    private DownloadHistory history;
+    // One query at a time, in order, so pages always arrive newest first
+    private final ExecutorService queryExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private DownloadHistory.Entry lastEntry;
+    private boolean loading = false;
+    private boolean exhausted = false;
+
+    @Override
+    protected void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_history);
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setTitle(getString(R.string.download_history));
+            getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+        }
+
+        emptyText = findViewById(R.id.historyEmptyText);
+        RecyclerView recyclerView = findViewById(R.id.historyRecyclerView);
+        history = new DownloadHistory(this);
+        adapter = new HistoryAdapter(this);
+        layoutManager = new GridLayoutManager(this, SPAN_COUNT);
+        // Note titles take a whole row
+        layoutManager.setSpanSizeLookup(new GridLayoutManager.SpanSizeLookup() {
+            @Override
+            public int getSpanSize(int position) {
+                return adapter.isHeader(position) ? SPAN_COUNT : 1;
+            }
+        });
+        recyclerView.setLayoutManager(layoutManager);
+        recyclerView.setHasFixedSize(true);
+        recyclerView.setAdapter(adapter);
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                loadMoreIfNeeded();
+            }
+        });
+
+        loadNextPage();
+    }
+
+    /**
+     * Starts on the next page once fewer than half a page of rows are left below the screen
+     */
+    private void loadMoreIfNeeded() {
+        int lastVisible = layoutManager.findLastVisibleItemPosition();
+        if (lastVisible >= adapter.getItemCount() - DownloadHistory.PAGE_SIZE / 2) {
+            loadNextPage();
+        }
+    }
+
+    private void loadNextPage() {
+        if (loading || exhausted) {
+            return;
+        }
+        loading = true;
+        DownloadHistory.Entry after = lastEntry;
+        queryExecutor.execute(() -> {
+            List<DownloadHistory.Entry> page = history.loadPage(after);
+            mainHandler.post(() -> onPageLoaded(page));
+        });
+    }
+
+    private void onPageLoaded(List<DownloadHistory.Entry> page) {
+        if (isFinishing() || isDestroyed()) {
+            return;
+        }
+        loading = false;
+        exhausted = page.size() < DownloadHistory.PAGE_SIZE;
+        if (!page.isEmpty()) {
+            lastEntry = page.get(page.size() - 1);
+            adapter.appendPage(page);
+        }
+        emptyText.setVisibility(adapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+        // A first page that doesn't fill the screen wouldn't scroll, so nothing else would ask for more
+        mainHandler.post(this::loadMoreIfNeeded);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(@NonNull MenuItem item) {
+        if (item.getItemId() == android.R.id.home) {
+            onBackPressed();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        queryExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,228 @@
+package com.neoruaa.xhsdn;
+
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+import android.text.format.DateFormat;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.annotation.NonNull;
+import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * 下载历史适配器：按笔记分组的缩略图网格，每组前有一个标题行.
+ * Rows are only ever appended a page at a time, so positions never shift under the views.
+ */
+public class HistoryAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+    private static final String TAG = "HistoryAdapter";
+    // Three columns need much less than the main grid's thumbnails
+    private static final int THUMBNAIL_SIZE = 400;
+    private static final int BADGE_SIZE_DP = 36;
+
+    static final int TYPE_HEADER = 0;
+    static final int TYPE_MEDIA = 1;
+
+    private final Context context;
+    private final ThumbnailLoader thumbnailLoader;
+    private final Drawable playBadge;
+    private final Drawable livePhotoBadge;
+    // A header row has a null entry and the note of the entries that follow it
+    private final List<Row> rows = new ArrayList<>();
+    private String lastNoteKey;
+
+    public HistoryAdapter(Context context) {
+        this.context = context;
+        this.thumbnailLoader = ThumbnailLoader.getInstance(context);
+        this.playBadge = ContextCompat.getDrawable(context, R.drawable.play_button_overlay);
+        this.livePhotoBadge = ContextCompat.getDrawable(context, R.drawable.live_photo_overlay);
+        setHasStableIds(true);
+    }
+
+    /**
+     * Appends a page, starting a new group wherever the note changes. Files of one note are saved
+     * together, so they are adjacent in date order; a group that runs past the end of a page carries on
+     * in the next one without a second header.
+     */
+    public void appendPage(List<DownloadHistory.Entry> entries) {
+        int start = rows.size();
+        for (DownloadHistory.Entry entry : entries) {
+            if (!entry.noteKey.equals(lastNoteKey)) {
+                lastNoteKey = entry.noteKey;
+                rows.add(new Row(entry.noteKey, entry.dateAdded, null));
+            }
+            rows.add(new Row(entry.noteKey, entry.dateAdded, entry));
+        }
+        if (rows.size() > start) {
+            notifyItemRangeInserted(start, rows.size() - start);
+        }
+    }
+
+    boolean isHeader(int position) {
+        return rows.get(position).entry == null;
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return isHeader(position) ? TYPE_HEADER : TYPE_MEDIA;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        // Media ids are positive; headers take the negated position, which never changes either
+        Row row = rows.get(position);
+        return row.entry != null ? row.entry.id : -1 - position;
+    }
+
+    @NonNull
+    @Override
+    public RecyclerView.ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        if (viewType == TYPE_HEADER) {
+            TextView title = new TextView(context);
+            title.setLayoutParams(new ViewGroup.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT,
+                ViewGroup.LayoutParams.WRAP_CONTENT
+            ));
+            int padding = dpToPx(8);
+            title.setPadding(padding, padding * 2, padding, padding);
+            title.setTypeface(Typeface.DEFAULT_BOLD);
+            return new HeaderViewHolder(title);
+        }
+        MediaAdapter.BadgedImageView imageView = new MediaAdapter.BadgedImageView(context, dpToPx(BADGE_SIZE_DP));
+        imageView.setLayoutParams(new ViewGroup.LayoutParams(
+            ViewGroup.LayoutParams.MATCH_PARENT,
+            ViewGroup.LayoutParams.WRAP_CONTENT
+        ));
+        // Square tiles: the grid's height is known before any thumbnail loads
+        imageView.setAspectRatio(1f);
+        imageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
+        int padding = dpToPx(2);
+        imageView.setPadding(padding, padding, padding, padding);
+        imageView.setBackgroundColor(0xFFEEEEEE);
+        MediaViewHolder holder = new MediaViewHolder(imageView);
+        imageView.setOnClickListener(holder);
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
+        Row row = rows.get(position);
+        if (holder instanceof HeaderViewHolder) {
+            String date = DateFormat.getMediumDateFormat(context).format(new Date(row.dateAdded * 1000L));
+            ((HeaderViewHolder) holder).title.setText(row.noteKey.isEmpty() ? date : row.noteKey + " · " + date);
+            return;
+        }
+        MediaViewHolder mediaHolder = (MediaViewHolder) holder;
+        mediaHolder.entry = row.entry;
+        mediaHolder.clearThumbnail();
+        if (row.entry.filePath != null) {
+            thumbnailLoader.load(mediaHolder.imageView, row.entry.filePath, row.entry.video, THUMBNAIL_SIZE, mediaHolder);
+        } else {
+            thumbnailLoader.cancel(mediaHolder.imageView);
+        }
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull RecyclerView.ViewHolder holder) {
+        if (holder instanceof MediaViewHolder) {
+            MediaViewHolder mediaHolder = (MediaViewHolder) holder;
+            thumbnailLoader.cancel(mediaHolder.imageView);
+            mediaHolder.clearThumbnail();
+            mediaHolder.entry = null;
+        }
+    }
+
+    @Override
+    public int getItemCount() {
+        return rows.size();
+    }
+
+    static class HeaderViewHolder extends RecyclerView.ViewHolder {
+        final TextView title;
+
+        HeaderViewHolder(TextView itemView) {
+            super(itemView);
+            this.title = itemView;
+        }
+    }
+
+    class MediaViewHolder extends RecyclerView.ViewHolder implements ThumbnailLoader.Callback, View.OnClickListener {
+        final MediaAdapter.BadgedImageView imageView;
+        DownloadHistory.Entry entry;
+        // The loader's bitmap this view shows; handed back when the view stops showing it
+        Bitmap shownBitmap;
+
+        MediaViewHolder(MediaAdapter.BadgedImageView itemView) {
+            super(itemView);
+            this.imageView = itemView;
+        }
+
+        @Override
+        public void onThumbnailLoaded(Bitmap bitmap) {
+            if (entry == null || bitmap == null) {
+                thumbnailLoader.release(bitmap);
+                return;
+            }
+            thumbnailLoader.release(shownBitmap);
+            shownBitmap = bitmap;
+            imageView.setImageBitmap(bitmap);
+            if (entry.video) {
+                imageView.setBadge(playBadge);
+            } else if (entry.displayName != null && entry.displayName.contains("_live")) {
+                imageView.setBadge(livePhotoBadge);
+            }
+        }
+
+        void clearThumbnail() {
+            imageView.setImageDrawable(null);
+            imageView.setBadge(null);
+            thumbnailLoader.release(shownBitmap);
+            shownBitmap = null;
+        }
+
+        @Override
+        public void onClick(View v) {
+            if (entry == null) {
+                return;
+            }
+            // MediaStore URIs can be handed to other apps as they are
+            Intent intent = new Intent(Intent.ACTION_VIEW);
+            intent.setDataAndType(entry.uri, entry.mimeType != null ? entry.mimeType : (entry.video ? "video/*" : "image/*"));
+            intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_ACTIVITY_NEW_TASK);
+            try {
+                context.startActivity(intent);
+            } catch (Exception e) {
+                Log.e(TAG, "No app to open " + entry.uri + ": " + e.getMessage());
+                Toast.makeText(context, context.getString(R.string.cannot_open_file, e.getMessage()), Toast.LENGTH_SHORT).show();
+            }
+        }
+    }
+
+    private static final class Row {
+        final String noteKey;
+        final long dateAdded;
+        final DownloadHistory.Entry entry;
+
+        Row(String noteKey, long dateAdded, DownloadHistory.Entry entry) {
+            this.noteKey = noteKey;
+            this.dateAdded = dateAdded;
+            this.entry = entry;
+        }
+    }
+
+    private int dpToPx(int dp) {
+        float density = context.getResources().getDisplayMetrics().density;
+        return Math.round(dp * density);
+    }
+}
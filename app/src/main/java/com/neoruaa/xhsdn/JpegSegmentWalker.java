@@ -0,0 +1,255 @@
+package com.neoruaa.xhsdn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Walks the marker segments of a JPEG header (SOI up to the start of scan) and works out where an
+ * XMP APP1 segment belongs: after any leading JFIF/APP0 and EXIF APP1 segments, replacing an existing
+ * XMP packet instead of adding a second one.
+ * The walker only uses absolute reads on a {@link ByteBuffer}, so it runs on a memory-mapped file
+ * (touching just the header pages) as well as on the peeked head of a network stream.
+ */
+public final class JpegSegmentWalker {
+    private static final byte[] EXIF_IDENTIFIER = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] XMP_IDENTIFIER = "http://ns.adobe.com/xap/1.0/\0".getBytes(StandardCharsets.US_ASCII);
+    // Extended XMP chunks belong to the standard packet they extend, so they go when it is replaced
+    private static final byte[] EXTENDED_XMP_IDENTIFIER = "http://ns.adobe.com/xmp/extension/\0".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int MARKER_APP0 = 0xE0;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int TAG_ORIENTATION = 0x0112;
+
+    private JpegSegmentWalker() {
+    }
+
+    /**
+     * Walks the header in {@code jpeg} from position 0.
+     * @return The layout, or null if the buffer ends before the start of scan and more bytes are needed
+     * @throws IOException if the data isn't a well-formed JPEG
+     */
+    public static Layout walk(ByteBuffer jpeg) throws IOException {
+        int limit = jpeg.limit();
+        if (limit < 2) {
+            return null;
+        }
+        if ((jpeg.get(0) & 0xFF) != 0xFF || (jpeg.get(1) & 0xFF) != 0xD8) {
+            throw new IOException("Image does not start with a JPEG SOI marker");
+        }
+
+        List<Span> spans = new ArrayList<>();
+        spans.add(new Span(0, 2, true));
+        int insertOffset = 2;
+        // Still inside the run of JFIF/EXIF segments at the start of the file
+        boolean leading = true;
+        int width = 0;
+        int height = 0;
+        int orientation = 1;
+        int offset = 2;
+
+        while (true) {
+            if (offset + 2 > limit) {
+                return null;
+            }
+            if ((jpeg.get(offset) & 0xFF) != 0xFF) {
+                throw new IOException("Malformed JPEG: expected a marker at offset " + offset);
+            }
+            int markerStart = offset;
+            int marker = jpeg.get(offset + 1) & 0xFF;
+            offset += 2;
+            while (marker == 0xFF) {
+                // Fill bytes before the marker code
+                if (offset >= limit) {
+                    return null;
+                }
+                marker = jpeg.get(offset++) & 0xFF;
+            }
+
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // TEM and RSTn carry no length field
+                spans.add(new Span(markerStart, offset, true));
+                leading = false;
+                continue;
+            }
+            if (marker == MARKER_EOI) {
+                throw new IOException("Malformed JPEG: EOI before any image data");
+            }
+
+            if (offset + 2 > limit) {
+                return null;
+            }
+            int length = ((jpeg.get(offset) & 0xFF) << 8) | (jpeg.get(offset + 1) & 0xFF);
+            if (length < 2) {
+                throw new IOException("Malformed JPEG: segment 0x" + Integer.toHexString(marker) + " has length " + length);
+            }
+            int payload = offset + 2;
+            int segmentEnd = offset + length;
+
+            if (marker == MARKER_SOS) {
+                if (width == 0 || height == 0) {
+                    throw new IOException("Malformed JPEG: scan without a valid frame header");
+                }
+                return new Layout(spans, insertOffset, markerStart, width, height, orientation);
+            }
+            if (segmentEnd > limit) {
+                return null;
+            }
+
+            if (isStartOfFrame(marker)) {
+                if (length < 7) {
+                    throw new IOException("Malformed JPEG: truncated frame header");
+                }
+                height = ((jpeg.get(payload + 1) & 0xFF) << 8) | (jpeg.get(payload + 2) & 0xFF);
+                width = ((jpeg.get(payload + 3) & 0xFF) << 8) | (jpeg.get(payload + 4) & 0xFF);
+                if (width == 0 || height == 0) {
+                    throw new IOException("Image has invalid dimensions: " + width + "x" + height);
+                }
+            }
+
+            if (marker == MARKER_APP1 && startsWith(jpeg, payload, segmentEnd, EXIF_IDENTIFIER)) {
+                orientation = readExifOrientation(jpeg, payload + EXIF_IDENTIFIER.length, segmentEnd);
+            }
+
+            boolean xmp = marker == MARKER_APP1 && (startsWith(jpeg, payload, segmentEnd, XMP_IDENTIFIER)
+                    || startsWith(jpeg, payload, segmentEnd, EXTENDED_XMP_IDENTIFIER));
+            spans.add(new Span(markerStart, segmentEnd, !xmp));
+
+            if (leading) {
+                if (marker == MARKER_APP0
+                        || (marker == MARKER_APP1 && startsWith(jpeg, payload, segmentEnd, EXIF_IDENTIFIER))) {
+                    insertOffset = segmentEnd;
+                } else if (!xmp) {
+                    // A dropped XMP packet doesn't end the run; anything else does
+                    leading = false;
+                }
+            }
+            offset = segmentEnd;
+        }
+    }
+
+    /**
+     * Reads the Orientation tag from IFD0 of the TIFF structure at {@code tiff}
+     * @return The EXIF orientation (1-8), or 1 if it isn't there
+     */
+    private static int readExifOrientation(ByteBuffer jpeg, int tiff, int end) {
+        if (end - tiff < 8) {
+            return 1;
+        }
+        boolean littleEndian;
+        if (jpeg.get(tiff) == 'I' && jpeg.get(tiff + 1) == 'I') {
+            littleEndian = true;
+        } else if (jpeg.get(tiff) == 'M' && jpeg.get(tiff + 1) == 'M') {
+            littleEndian = false;
+        } else {
+            return 1;
+        }
+        long ifdOffset = readU32(jpeg, tiff + 4, littleEndian);
+        if (ifdOffset < 8 || tiff + ifdOffset + 2 > end) {
+            return 1;
+        }
+        int ifd = tiff + (int) ifdOffset;
+        int count = readU16(jpeg, ifd, littleEndian);
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + 12 * i;
+            if (entry + 12 > end) {
+                break;
+            }
+            if (readU16(jpeg, entry, littleEndian) == TAG_ORIENTATION) {
+                int orientation = readU16(jpeg, entry + 8, littleEndian);
+                return orientation >= 1 && orientation <= 8 ? orientation : 1;
+            }
+        }
+        return 1;
+    }
+
+    private static int readU16(ByteBuffer buffer, int offset, boolean littleEndian) {
+        int b0 = buffer.get(offset) & 0xFF;
+        int b1 = buffer.get(offset + 1) & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private static long readU32(ByteBuffer buffer, int offset, boolean littleEndian) {
+        long first = readU16(buffer, offset, littleEndian);
+        long second = readU16(buffer, offset + 2, littleEndian);
+        return littleEndian ? (second << 16) | first : (first << 16) | second;
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // SOF0-SOF15, except DHT (C4), JPG (C8) and DAC (CC) which share the range
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int offset, int end, byte[] prefix) {
+        if (end - offset < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(offset + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A byte range of the original header, either copied to the output or dropped
+     */
+    public static final class Span {
+        public final int start;
+        public final int end;
+        public final boolean keep;
+
+        Span(int start, int end, boolean keep) {
+            this.start = start;
+            this.end = end;
+            this.keep = keep;
+        }
+
+        public int length() {
+            return end - start;
+        }
+    }
+
+    /**
+     * Where the new XMP segment goes and which header bytes survive.
+     * The spans cover the header contiguously from 0 to {@link #scanOffset}; everything from the start
+     * of scan onwards is copied unchanged. {@link #insertOffset} always falls on a span boundary.
+     */
+    public static final class Layout {
+        public final List<Span> spans;
+        public final int insertOffset;
+        public final int scanOffset;
+        public final int width;
+        public final int height;
+        // EXIF orientation (1-8), 1 if the image has none
+        public final int orientation;
+
+        Layout(List<Span> spans, int insertOffset, int scanOffset, int width, int height, int orientation) {
+            this.spans = Collections.unmodifiableList(spans);
+            this.insertOffset = insertOffset;
+            this.scanOffset = scanOffset;
+            this.width = width;
+            this.height = height;
+            this.orientation = orientation;
+        }
+
+        /**
+         * @return The number of header bytes dropped (existing XMP segments)
+         */
+        public int droppedBytes() {
+            int dropped = 0;
+            for (Span span : spans) {
+                if (!span.keep) {
+                    dropped += span.length();
+                }
+            }
+            return dropped;
+        }
+    }
+}
@@ -7,9 +7,20 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
 
 public class LivePhotoCreator {
     private static final String TAG = "LivePhotoCreator";
+    // How much of a streamed image is peeked at first to find the end of its header; doubled as needed
+    private static final int INITIAL_HEAD_PEEK_BYTES = 64 * 1024;
+    // Headers larger than this (huge ICC profiles or EXIF thumbnails) aren't worth buffering
+    private static final int MAX_HEAD_PEEK_BYTES = 1024 * 1024;
 
     /**
      * Creates a live photo by embedding video into image with XMP metadata
@@ -19,35 +30,133 @@ public class LivePhotoCreator {
      * @return True if successful, false otherwise
      */
     public static boolean createLivePhoto(File imageFile, File videoFile, File outputFile) {
+        boolean created;
+        try (FileOutputStream outputStream = new FileOutputStream(outputFile)) {
+            created = createLivePhoto(imageFile, videoFile, outputStream);
+        } catch (IOException e) {
+            Log.e(TAG, "Error creating live photo: " + e.getMessage());
+            created = false;
+        }
+        // If the file was created but is invalid, delete it
+        if (!created && outputFile.exists()) {
+            outputFile.delete();
+        }
+        return created;
+    }
+
+    /**
+     * Creates a live photo by embedding video into image with XMP metadata, writing it to an
+     * already open output such as a pending MediaStore entry. The caller owns and closes the stream,
+     * and discards the entry if this fails.
+     * @param imageFile The image file to use as the primary content
+     * @param videoFile The video file to embed
+     * @param outputStream The output, positioned at the start of an empty file
+     * @return True if successful, false otherwise
+     */
+    public static boolean createLivePhoto(File imageFile, File videoFile, FileOutputStream outputStream) {
         try {
             Log.d(TAG, "Creating live photo from image: " + imageFile.getAbsolutePath() + 
                    " (size: " + imageFile.length() + " bytes) and video: " + videoFile.getAbsolutePath() + 
-                   " (size: " + videoFile.length() + " bytes) -> output: " + outputFile.getAbsolutePath());
+                   " (size: " + videoFile.length() + " bytes)");
             
             // Read the video file size
             long videoSize = videoFile.length();
-            
-            // For compatibility with working implementation, use video size for GCamera:MicroVideoOffset
-            // Some parsers use fileLength - videoSize to locate video data
-            String xmpDataStr = generateXMPMetadata((int)videoSize, (int)videoSize);
-            byte[] xmpData = xmpDataStr.getBytes("UTF-8");
-            byte[] xmpSegment = createXmpApp1Segment(xmpData);
+            byte[] xmpSegment = buildXmpSegment(videoSize);
             
             // Create the live photo using streaming approach to avoid memory issues
-            return createLivePhotoStreaming(imageFile, videoFile, outputFile, xmpSegment);
+            return createLivePhotoStreaming(imageFile, videoFile, outputStream.getChannel(), xmpSegment);
             
         } catch (Exception e) {
             Log.e(TAG, "Error creating live photo: " + e.getMessage());
             e.printStackTrace();
-            // If the file was created but is invalid, delete it
-            if (outputFile.exists()) {
-                outputFile.delete();
-            }
             return false;
         }
     }
     
+    /**
+     * Creates a live photo straight from two streams, without staging the inputs in files first.
+     * The image is copied with the XMP segment spliced into its header and the video is appended as it
+     * arrives, with its moov box moved ahead of the media data (see {@link #copyStreamedVideo}).
+     * @param imageSource The JPEG image stream
+     * @param imageSize The image length in bytes, or -1 if unknown
+     * @param videoSource The video stream
+     * @param videoSize The exact video length in bytes; it goes into the XMP before any video byte is read
+     * @param outputStream The output file, e.g. a pending MediaStore entry; the caller owns and closes it,
+     *                     and discards it if this fails
+     * @return True if successful, false otherwise
+     */
+    public static boolean createLivePhoto(BufferedSource imageSource, long imageSize,
+                                          BufferedSource videoSource, long videoSize, FileOutputStream outputStream) {
+        long imageBytesCopied;
+        long videoOffset;
+        BufferedSink sink = Okio.buffer(Okio.sink(outputStream));
+        try {
+            // Validate both inputs before writing anything; peeking only buffers the JPEG header
+            // segments and the first bytes of the video
+            JpegSegmentWalker.Layout layout = walkStreamedHeader(imageSource);
+            checkVideoHeader(videoSource.peek());
+            byte[] xmpSegment = buildXmpSegment(videoSize);
+
+            // The header with the XMP segment spliced in, then the rest of the image as it arrives
+            boolean xmpWritten = false;
+            for (JpegSegmentWalker.Span span : layout.spans) {
+                if (!xmpWritten && span.start >= layout.insertOffset) {
+                    sink.write(xmpSegment);
+                    xmpWritten = true;
+                }
+                if (span.keep) {
+                    sink.write(imageSource, span.length());
+                } else {
+                    imageSource.skip(span.length());
+                }
+            }
+            if (!xmpWritten) {
+                sink.write(xmpSegment);
+            }
+            long imageBytesRead = layout.scanOffset + imageSource.readAll(sink);
+            if (imageSize >= 0 && imageBytesRead != imageSize) {
+                throw new IOException("Expected " + imageSize + " image bytes but received " + imageBytesRead);
+            }
+            imageBytesCopied = imageBytesRead - layout.droppedBytes();
+            videoOffset = imageBytesCopied + xmpSegment.length;
 
+            // The XMP already promises videoSize bytes; a short stream fails with EOFException here
+            FileChannel outputChannel = outputStream.getChannel();
+            sink.flush();
+            long videoStart = outputChannel.position();
+            copyStreamedVideo(videoSource, videoSize, sink, outputChannel);
+            if (!videoSource.exhausted()) {
+                throw new IOException("Video stream is longer than the " + videoSize + " bytes recorded in XMP");
+            }
+            // Flush without closing; the output belongs to the caller
+            sink.flush();
+            if (outputChannel.position() != videoStart + videoSize) {
+                throw new IOException("Output ends at " + outputChannel.position() + ", expected " + (videoStart + videoSize));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error in streamed live photo creation: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+
+        Log.d(TAG, "Successfully streamed live photo. Image bytes copied: " + imageBytesCopied +
+              ", Video bytes copied: " + videoSize + " at offset " + videoOffset +
+              ", Total file size: " + (videoOffset + videoSize));
+        return true;
+    }
+
+    /**
+     * Builds the APP1 segment carrying the Motion Photo XMP for a video of the given size
+     */
+    private static byte[] buildXmpSegment(long videoSize) throws IOException {
+        // For compatibility with working implementation, use video size for GCamera:MicroVideoOffset
+        // Some parsers use fileLength - videoSize to locate video data
+        String xmpDataStr = generateXMPMetadata(videoSize, videoSize);
+        byte[] xmpData = xmpDataStr.getBytes("UTF-8");
+        byte[] segment = createXmpApp1Segment(xmpData);
+        checkXmpSegment(segment);
+        return segment;
+    }
     
     /**
      * Generates XMP metadata for live photo
@@ -55,7 +164,7 @@ public class LivePhotoCreator {
      * @param videoLengthForOffset This parameter is actually the video size to be used for GCamera:MicroVideoOffset (some parsers use fileLength - videoSize to locate video)
      * @return XMP metadata string
      */
-    private static String generateXMPMetadata(int videoSize, int videoLengthForOffset) {
+    private static String generateXMPMetadata(long videoSize, long videoLengthForOffset) {
         return String.format(
             "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\" x:xmptk=\"Adobe XMP Core 5.1.0-jc003\">" +
             "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">" +
@@ -135,164 +244,234 @@ public class LivePhotoCreator {
     }
     
     /**
-     * Validates if the created live photo is valid
-     * @param file The file to validate
-     * @return true if valid, false otherwise
+     * Finds the header layout of a streamed image by walking a peeked copy of its first bytes,
+     * widening the peek until the start of scan is in view. Nothing is consumed from the source.
      */
-    private static boolean isLivePhotoValid(File file) {
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] header = new byte[10];
-            int bytesRead = fis.read(header);
-            if (bytesRead < 2) {
-                return false;
-            }
-            
-            // Check for JPEG SOI marker (0xFFD8)
-            if (header[0] != (byte) 0xFF || header[1] != (byte) 0xD8) {
-                Log.d(TAG, "File does not have valid JPEG SOI marker");
-                return false;
-            }
-            
-            // Check for the presence of XMP metadata by reading first part of file
-            byte[] buffer = new byte[16384]; // Read first 16KB to look for XMP
-            fis.close(); // Close the first stream
-            
-            // Read data to check for XMP metadata
-            try (FileInputStream fis2 = new FileInputStream(file)) {
-                int totalRead = 0;
-                while (totalRead < buffer.length && (bytesRead = fis2.read(buffer, totalRead, buffer.length - totalRead)) != -1) {
-                    totalRead += bytesRead;
-                }
-                
-                String content = new String(buffer, 0, totalRead, "UTF-8");
-                
-                // Look for XMP signatures
-                boolean hasXmpMeta = content.contains("xmpmeta");
-                boolean hasMotionPhoto = content.contains("MotionPhoto");
-                boolean hasMicroVideo = content.contains("MicroVideo");
-                
-                Log.d(TAG, "XMP validation - xmpmeta: " + hasXmpMeta + ", MotionPhoto: " + hasMotionPhoto + ", MicroVideo: " + hasMicroVideo);
-                
-                if (!hasXmpMeta || !hasMotionPhoto) {
-                    Log.d(TAG, "File does not contain valid XMP Motion Photo metadata");
-                    return false;
-                }
+    private static JpegSegmentWalker.Layout walkStreamedHeader(BufferedSource imageSource) throws IOException {
+        int wanted = INITIAL_HEAD_PEEK_BYTES;
+        while (true) {
+            boolean ended = !imageSource.request(wanted);
+            int available = (int) Math.min(wanted, imageSource.getBuffer().size());
+            byte[] head = imageSource.peek().readByteArray(available);
+
+            JpegSegmentWalker.Layout layout = JpegSegmentWalker.walk(ByteBuffer.wrap(head));
+            if (layout != null) {
+                return layout;
             }
-            
-            // Try to decode the image to make sure it's valid
-            android.graphics.BitmapFactory.Options options = new android.graphics.BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            android.graphics.BitmapFactory.decodeFile(file.getAbsolutePath(), options);
-            
-            if (options.outWidth <= 0 || options.outHeight <= 0) {
-                Log.d(TAG, "Image has invalid dimensions: " + options.outWidth + "x" + options.outHeight);
-                return false;
+            if (ended || wanted >= MAX_HEAD_PEEK_BYTES) {
+                throw new IOException("No start of scan within the first " + available + " bytes of the image");
             }
-            
-            return true;
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error validating live photo: " + e.getMessage());
-            return false;
+            wanted *= 2;
         }
     }
-    
+
     /**
-     * Reads a file into a byte array
-     * @param file The file to read
-     * @return Byte array containing the file contents
-     * @throws IOException
+     * Checks that the video starts with an ISO BMFF ftyp box, i.e. is something a gallery can play
+     * @param source A source positioned at the start of the video
      */
-    private static byte[] readFileToBytes(File file) throws IOException {
-        try (FileInputStream fis = new FileInputStream(file);
-             ByteArrayOutputStream buffer = new ByteArrayOutputStream()) {
-            
-            int nRead;
-            byte[] data = new byte[16384]; // 16KB buffer
-            
-            while ((nRead = fis.read(data, 0, data.length)) != -1) {
-                buffer.write(data, 0, nRead);
+    private static void checkVideoHeader(BufferedSource source) throws IOException {
+        source.require(12);
+        MediaClassifier.MediaType type = MediaClassifier.sniff(source.readByteArray(12), 12);
+        if (type == null || !type.isIsoMedia()) {
+            throw new IOException("Embedded video is not an MP4/MOV stream");
+        }
+    }
+
+    /**
+     * Confirms the APP1 segment about to be written is well-formed: the marker, a length field that
+     * matches the payload (and fits in 16 bits), and the XMP namespace header
+     */
+    private static void checkXmpSegment(byte[] segment) throws IOException {
+        byte[] xmpHeader = "http://ns.adobe.com/xap/1.0/\0".getBytes("UTF-8");
+        if (segment.length - 2 > 0xFFFF) {
+            throw new IOException("XMP packet too large for a single APP1 segment: " + segment.length + " bytes");
+        }
+        int length = ((segment[2] & 0xFF) << 8) | (segment[3] & 0xFF);
+        if ((segment[0] & 0xFF) != 0xFF || (segment[1] & 0xFF) != 0xE1 || length != segment.length - 2) {
+            throw new IOException("Malformed XMP APP1 segment");
+        }
+        for (int i = 0; i < xmpHeader.length; i++) {
+            if (segment[4 + i] != xmpHeader[i]) {
+                throw new IOException("XMP APP1 segment is missing the XMP namespace header");
             }
-            
-            return buffer.toByteArray();
         }
     }
     
     /**
-     * Creates a live photo using streaming approach to avoid memory issues
+     * Creates a live photo using streaming approach to avoid memory issues.
+     * The image is memory-mapped and written by splicing mapped regions around the new XMP segment, so
+     * it is never loaded onto the heap; the video is appended with {@link FileChannel#transferTo},
+     * which lets the kernel copy the data (sendfile) without passing it through a Java buffer.
+     * Only the video's moov box is read into memory, to move it ahead of the media data.
      * @param imageFile The image file to use as the primary content
      * @param videoFile The video file to embed
-     * @param outputFile The output live photo file
+     * @param outputChannel The output channel; left open for the caller
      * @param xmpSegment The XMP metadata segment to insert
      * @return True if successful, false otherwise
      */
-    private static boolean createLivePhotoStreaming(File imageFile, File videoFile, File outputFile, byte[] xmpSegment) {
-        try (FileInputStream imageStream = new FileInputStream(imageFile);
-             FileInputStream videoStream = new FileInputStream(videoFile);
-             FileOutputStream outputStream = new FileOutputStream(outputFile)) {
+    private static boolean createLivePhotoStreaming(File imageFile, File videoFile, FileChannel outputChannel, byte[] xmpSegment) {
+        try (FileChannel imageChannel = new FileInputStream(imageFile).getChannel();
+             FileChannel videoChannel = new FileInputStream(videoFile).getChannel()) {
             
-            // Write the JPEG header (first 2 bytes: SOI marker - 0xFFD8)
-            byte[] headerBuffer = new byte[2];
-            int bytesRead = imageStream.read(headerBuffer);
-            if (bytesRead != 2) {
-                Log.e(TAG, "Could not read image header");
-                return false;
+            long imageSize = imageChannel.size();
+            long videoSize = videoChannel.size();
+
+            if (imageSize > Integer.MAX_VALUE) {
+                throw new IOException("Image too large to map: " + imageSize + " bytes");
             }
-            outputStream.write(headerBuffer);
-            
-            // Write the XMP segment right after SOI
-            outputStream.write(xmpSegment);
-            
-            // Skip the first 2 bytes of the image (already written) and copy the rest
-            // Copy remaining image data
-            byte[] buffer = new byte[8192]; // 8KB buffer to reduce memory usage
-            int totalImageBytes = (int)(imageFile.length() - 2); // Subtract the 2 bytes already read
-            int copiedBytes = 0;
-            
-            while (copiedBytes < totalImageBytes) {
-                int bytesToRead = Math.min(buffer.length, totalImageBytes - copiedBytes);
-                bytesRead = imageStream.read(buffer, 0, bytesToRead);
-                if (bytesRead == -1) break;
-                
-                outputStream.write(buffer, 0, bytesRead);
-                copiedBytes += bytesRead;
+
+            // Validate both inputs before writing anything; only the header pages of the image are touched
+            MappedByteBuffer image = imageChannel.map(FileChannel.MapMode.READ_ONLY, 0, imageSize);
+            JpegSegmentWalker.Layout layout = JpegSegmentWalker.walk(image);
+            if (layout == null) {
+                throw new IOException("Image ends before the start of scan");
             }
-            
-            // Copy the entire video file to the end
-            long videoBytesCopied = 0;
-            while (true) {
-                bytesRead = videoStream.read(buffer);
-                if (bytesRead == -1) break;
-                
-                outputStream.write(buffer, 0, bytesRead);
-                videoBytesCopied += bytesRead;
+            try (BufferedSource videoHeader = Okio.buffer(Okio.source(videoFile))) {
+                checkVideoHeader(videoHeader);
             }
-            
-            outputStream.flush();
-            
-            Log.d(TAG, "Successfully created live photo with streaming approach. Image bytes copied: " + 
-                  copiedBytes + ", Video bytes copied: " + videoBytesCopied + ", Total file size: " + 
-                  outputFile.length());
-            
-            // Verify that the created file is valid
-            if (!isLivePhotoValid(outputFile)) {
-                Log.e(TAG, "Created live photo is not valid - failed validation check");
-                if (outputFile.exists()) {
-                    outputFile.delete(); // Clean up invalid file
+
+            // Header segments with the XMP segment after JFIF/EXIF and any old XMP packet left out
+            boolean xmpWritten = false;
+            for (JpegSegmentWalker.Span span : layout.spans) {
+                if (!xmpWritten && span.start >= layout.insertOffset) {
+                    writeFully(outputChannel, ByteBuffer.wrap(xmpSegment));
+                    xmpWritten = true;
+                }
+                if (span.keep) {
+                    writeFully(outputChannel, region(image, span.start, span.end));
                 }
-                return false;
+            }
+            if (!xmpWritten) {
+                writeFully(outputChannel, ByteBuffer.wrap(xmpSegment));
             }
             
-            Log.d(TAG, "Live photo validation passed successfully");
-            return true;
+            // Copy the scan data, then the entire video to the end
+            writeFully(outputChannel, region(image, layout.scanOffset, (int) imageSize));
+            long copiedBytes = imageSize - layout.droppedBytes();
+            long videoOffset = outputChannel.position();
+            long videoBytesCopied = copyVideo(videoChannel, videoSize, outputChannel);
+
+            // Readers locate the video as fileLength - videoSize, so the video must end the file exactly
+            if (outputChannel.position() != videoOffset + videoSize) {
+                throw new IOException("Output ends at " + outputChannel.position() + ", expected " + (videoOffset + videoSize));
+            }
+            
+            Log.d(TAG, "Successfully created live photo with streaming approach. Image bytes copied: " + 
+                  copiedBytes + ", Video bytes copied: " + videoBytesCopied + " at offset " + videoOffset +
+                  ", Total file size: " + outputChannel.position());
         } catch (Exception e) {
             Log.e(TAG, "Error in streaming live photo creation: " + e.getMessage());
             e.printStackTrace();
-            // If the file was created but is invalid, delete it
-            if (outputFile.exists()) {
-                outputFile.delete();
-            }
             return false;
         }
+        return true;
+    }
+
+    /**
+     * Appends a video file with its moov box in front of the media data, or verbatim if it already is
+     * (or can't be rearranged). The size doesn't change either way.
+     * @return The number of bytes copied
+     */
+    private static long copyVideo(FileChannel videoChannel, long videoSize, FileChannel out) throws IOException {
+        Mp4Faststart.Plan plan = Mp4Faststart.plan(videoChannel);
+        if (plan == null) {
+            return transferFully(videoChannel, 0, videoSize, out);
+        }
+        Log.d(TAG, "Moving moov (" + plan.moovSize + " bytes) from " + plan.moovOffset + " to " + plan.firstMdatOffset);
+        long afterMoov = plan.moovOffset + plan.moovSize;
+        long copied = transferFully(videoChannel, 0, plan.firstMdatOffset, out);
+        writeFully(out, plan.moov);
+        copied += plan.moovSize;
+        copied += transferFully(videoChannel, plan.firstMdatOffset, plan.moovOffset - plan.firstMdatOffset, out);
+        copied += transferFully(videoChannel, afterMoov, videoSize - afterMoov, out);
+        return copied;
+    }
+
+    /**
+     * Appends exactly {@code videoSize} bytes of a streamed video. The boxes in front of the first mdat
+     * are copied as they arrive. If the moov comes later, the mdat is written past a gap the size of
+     * everything that follows it, and that tail (the moov and any trailing boxes, at most
+     * {@link Mp4Faststart#MAX_MOVED_BYTES}) is rewritten and filled into the gap once it has arrived.
+     * The mdat itself is never buffered.
+     * Everything that can be checked before the gap is committed is: the tail size and whether the
+     * shifted chunk offsets still fit in stco; if either fails the video is copied verbatim. What can
+     * only be seen in the tail itself (a second mdat, a compressed moov) arrives after the mdat is
+     * already written past the gap, so it fails the live photo and the caller falls back to temporary
+     * files, where {@link #copyVideo} keeps such a video as it is.
+     * @param sink Buffered view of {@code out}, flushed before {@code out} is repositioned
+     */
+    private static void copyStreamedVideo(BufferedSource video, long videoSize, BufferedSink sink,
+                                          FileChannel out) throws IOException {
+        long offset = 0;
+        while (offset < videoSize) {
+            int headerBytes = (int) Math.min(Mp4Faststart.MAX_HEADER_SIZE, videoSize - offset);
+            video.require(headerBytes);
+            byte[] head = video.peek().readByteArray(headerBytes);
+            Mp4Faststart.BoxHeader header = Mp4Faststart.BoxHeader.read(
+                    ByteBuffer.wrap(head), 0, head.length, videoSize - offset);
+            if (header == null || header.is("moov")) {
+                // Already faststart, or nothing we can parse: the rest goes out as-is
+                break;
+            }
+            if (!header.is("mdat")) {
+                sink.write(video, header.size);
+                offset += header.size;
+                continue;
+            }
+
+            long tailSize = videoSize - offset - header.size;
+            if (tailSize <= 0 || tailSize > Mp4Faststart.MAX_MOVED_BYTES
+                    || !Mp4Faststart.offsetsFitStco(videoSize)) {
+                break;
+            }
+            sink.flush();
+            long tailPosition = out.position();
+            out.position(tailPosition + tailSize);
+            sink.write(video, header.size);
+            sink.flush();
+
+            ByteBuffer tail = ByteBuffer.wrap(video.readByteArray(tailSize));
+            Mp4Faststart.prepareTail(tail, offset, header.size);
+            while (tail.hasRemaining()) {
+                out.write(tail, tailPosition + tail.position());
+            }
+            Log.d(TAG, "Moved " + tailSize + " bytes of moov/trailing boxes ahead of the mdat at " + offset);
+            return;
+        }
+        sink.write(video, videoSize - offset);
+    }
+
+    /**
+     * Copies {@code count} bytes starting at {@code position} into the output channel.
+     * transferTo may move fewer bytes than asked for, so it is called until everything is copied.
+     * @return The number of bytes copied
+     * @throws IOException if the input ends before {@code count} bytes were copied
+     */
+    private static long transferFully(FileChannel in, long position, long count, FileChannel out) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long n = in.transferTo(position + transferred, count - transferred, out);
+            if (n <= 0) {
+                throw new IOException("Input ended after " + transferred + " of " + count + " bytes");
+            }
+            transferred += n;
+        }
+        return transferred;
+    }
+
+    /**
+     * A view of {@code [start, end)} of the mapped image that shares its pages
+     */
+    private static ByteBuffer region(MappedByteBuffer image, int start, int end) {
+        ByteBuffer region = image.duplicate();
+        region.limit(end);
+        region.position(start);
+        return region;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
     }
-}
\ No newline at end of file
+}
@@ -4,8 +4,6 @@ import android.Manifest;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.net.Uri;
 import android.os.Build;
@@ -24,7 +22,6 @@ import android.widget.HorizontalScrollView;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.ProgressBar;
-import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.VideoView;
@@ -44,13 +41,12 @@ public class MainActivity extends AppCompatActivity {
     private Button downloadButton;
     private Button copyTextButton;
     private Button webCrawlButton;
-    private TextView statusText;
+    private StatusLogAdapter statusLog;
     private ProgressBar progressBar;
     private TextView progressText;
     private LinearLayout progressContainer;
     private android.widget.ImageButton clearButton;
     private androidx.recyclerview.widget.RecyclerView imageContainer;
-    private ScrollView statusScrollView;
     private MediaAdapter mediaAdapter;
     private static final int PERMISSION_REQUEST_CODE = 1001;
     private static final int WEBVIEW_REQUEST_CODE = 1002;
@@ -81,19 +77,14 @@ public class MainActivity extends AppCompatActivity {
         downloadButton = findViewById(R.id.downloadButton);
         copyTextButton = findViewById(R.id.copyTextButton);  // New copy text button
         webCrawlButton = findViewById(R.id.webCrawlButton);
-        statusText = findViewById(R.id.statusText);
-        statusScrollView = findViewById(R.id.statusScrollView);
         progressBar = findViewById(R.id.progressBar);
         progressText = findViewById(R.id.progressText);
         progressContainer = findViewById(R.id.progressContainer);
         clearButton = findViewById(R.id.clearButton);
         imageContainer = findViewById(R.id.imageContainer);
 
-        // 启用 statusText 的滚动功能
-        statusText.setMovementMethod(new android.text.method.ScrollingMovementMethod());
-        
-        // 默认滚动到底部
-        statusScrollView.post(() -> statusScrollView.fullScroll(ScrollView.FOCUS_DOWN));
+        // 状态日志：只绘制可见的几行，进度行原地更新
+        setupStatusLog();
 
         // 初始化瀑布流布局
         setupWaterfallLayout();
@@ -162,11 +153,11 @@ public class MainActivity extends AppCompatActivity {
                 return;
             }
 
-            statusText.setText(getString(R.string.processing_url, url));
+            statusLog.clear();
+            statusLog.add(getString(R.string.processing_url, url));
             
             // Show loading message
-            statusText.append("\n" + getString(R.string.fetching_desc));
-            autoScrollToBottom();
+            statusLog.add(getString(R.string.fetching_desc));
             
             // Create XHSDownloader instance to get description
             XHSDownloader downloader = new XHSDownloader(this, null);
@@ -183,12 +174,10 @@ public class MainActivity extends AppCompatActivity {
                         android.content.ClipData clip = android.content.ClipData.newPlainText("Note Description", description);
                         clipboard.setPrimaryClip(clip);
                         
-                        statusText.append("\n" + getString(R.string.desc_copied) + "\n" + description);
-                        autoScrollToBottom();
+                        statusLog.add(getString(R.string.desc_copied) + "\n" + description);
                         Log.d("MainActivity", "Description copied to clipboard: " + description);
                     } else {
-                        statusText.append("\n" + getString(R.string.desc_not_found));
-                        autoScrollToBottom();
+                        statusLog.add(getString(R.string.desc_not_found));
                     }
                 });
             }).start();
@@ -295,7 +284,6 @@ public class MainActivity extends AppCompatActivity {
         if (mediaAdapter != null) {
             mediaAdapter.clearItems();
         }
-        displayedFiles.clear(); // 清除已显示文件的记录，允许重复下载时显示缩略图
     }
     
     /**
@@ -310,17 +298,12 @@ public class MainActivity extends AppCompatActivity {
         
         // 初始化适配器
         mediaAdapter = new MediaAdapter(this);
+        // Scroll to the last item (bottom of the list) once newly downloaded files have been laid out
+        mediaAdapter.setOnItemsAppendedListener(lastPosition ->
+                imageContainer.post(() -> imageContainer.smoothScrollToPosition(lastPosition)));
         imageContainer.setAdapter(mediaAdapter);
     }
 
-    private void addMediaView(String filePath) {
-        File mediaFile = new File(filePath);
-        if (mediaFile.exists() && mediaAdapter != null) {
-            // 添加媒体文件到适配器
-            mediaAdapter.addItem(filePath);
-        }
-    }
-    
     private boolean isImageFile(String mimeType) {
         return mimeType != null && mimeType.startsWith("image/");
     }
@@ -348,18 +331,6 @@ public class MainActivity extends AppCompatActivity {
         return null;
     }
     
-    private Bitmap createVideoThumbnail(String filePath) {
-        try {
-            // 使用 MediaMetadataRetriever 获取视频缩略图
-            android.media.MediaMetadataRetriever retriever = new android.media.MediaMetadataRetriever();
-            retriever.setDataSource(filePath);
-            return retriever.getFrameAtTime(1000000, android.media.MediaMetadataRetriever.OPTION_CLOSEST_SYNC); // 1秒处的帧
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-    
     private void openImageInExternalApp(String imagePath) {
         Intent intent = new Intent(Intent.ACTION_VIEW);
         File file = new File(imagePath);
@@ -442,38 +413,6 @@ public class MainActivity extends AppCompatActivity {
         }
     }
     
-    private Bitmap decodeSampledBitmapFromFile(String filePath, int reqWidth, int reqHeight) {
-        // 首先获取位图的边界，不分配内存
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(filePath, options);
-
-        // 计算采样率
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
-
-        // 使用计算出的采样率解码位图
-        options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFile(filePath, options);
-    }
-    
-    private int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
-        // 原始位图的高度和宽度
-        final int height = options.outHeight;
-        final int width = options.outWidth;
-        int inSampleSize = 1;
-
-        if (height > reqHeight || width > reqWidth) {
-            // 计算高度和宽度的比率
-            final int heightRatio = Math.round((float) height / (float) reqHeight);
-            final int widthRatio = Math.round((float) width / (float) reqWidth);
-
-            // 选择较小的比率作为inSampleSize
-            inSampleSize = heightRatio < widthRatio ? heightRatio : widthRatio;
-        }
-
-        return inSampleSize;
-    }
-    
     private void openFileInExternalApp(String filePath) {
         Intent intent = new Intent(Intent.ACTION_VIEW);
         File file = new File(filePath);
@@ -515,37 +454,60 @@ public class MainActivity extends AppCompatActivity {
         }
     }
     
+    private void setupStatusLog() {
+        androidx.recyclerview.widget.RecyclerView statusLogView = findViewById(R.id.statusLog);
+        statusLogView.setLayoutManager(new androidx.recyclerview.widget.LinearLayoutManager(this));
+        // A progress line is rewritten several times a second; cross-fading each rewrite only costs frames
+        statusLogView.setItemAnimator(null);
+        statusLog = new StatusLogAdapter(this);
+        statusLogView.setAdapter(statusLog);
+        statusLog.add(getString(R.string.ready_to_download));
+    }
+
     /**
-     * Auto-scroll the status ScrollView to the bottom
+     * Shares the status log as a text file, e.g. to attach it to a bug report
      */
-    public void autoScrollToBottom() {
-        if (statusScrollView != null) {
-            // Use post to ensure the scroll happens after the layout is updated
-            statusScrollView.post(() -> statusScrollView.fullScroll(ScrollView.FOCUS_DOWN));
-        }
+    private void exportStatusLog() {
+        String log = statusLog.export();
+        new Thread(() -> {
+            File logFile = new File(getCacheDir(), "xhs_status_log.txt");
+            try (java.io.FileOutputStream outputStream = new java.io.FileOutputStream(logFile)) {
+                outputStream.write(log.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            } catch (java.io.IOException e) {
+                Log.e("MainActivity", "Failed to write status log: " + e.getMessage());
+                runOnUiThread(() -> Toast.makeText(this, getString(R.string.export_status_log_failed, e.getMessage()),
+                        Toast.LENGTH_SHORT).show());
+                return;
+            }
+            Uri uri = FileProvider.getUriForFile(this, getPackageName() + ".fileprovider", logFile);
+            Intent intent = new Intent(Intent.ACTION_SEND);
+            intent.setType("text/plain");
+            intent.putExtra(Intent.EXTRA_STREAM, uri);
+            intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            runOnUiThread(() -> startActivity(Intent.createChooser(intent, getString(R.string.export_status_log))));
+        }).start();
     }
 
-    private final java.util.Set<String> displayedFiles = new java.util.HashSet<>();
+    /**
+     * Shows a tile for a media item the note lists, with its preview until the file is downloaded
+     * (see {@link DownloadCallback#onMediaListed}). Can be called from any thread.
+     */
+    public void addMediaPreview(String sourceUrl, String previewUrl, int width, int height) {
+        if (mediaAdapter != null) {
+            mediaAdapter.addPreview(sourceUrl, previewUrl, width, height);
+        }
+    }
 
-    public void addMediaToDisplay(String filePath) {
-        runOnUiThread(() -> {
-            // Check if this file has already been added to prevent duplicates
-            if (!displayedFiles.contains(filePath)) {
-                displayedFiles.add(filePath);
-                addMediaView(filePath);
-                
-                // Auto-scroll to bottom of the image container
-                if (imageContainer != null && mediaAdapter != null) {
-                    imageContainer.post(() -> {
-                        // Scroll to the last item (bottom of the list)
-                        int lastPosition = mediaAdapter.getItemCount() - 1;
-                        if (lastPosition >= 0) {
-                            imageContainer.smoothScrollToPosition(lastPosition);
-                        }
-                    });
-                }
-            }
-        });
+    /**
+     * Adds a downloaded file to the grid. Meant for the download threads: the file is checked there,
+     * and the adapter batches the insert into the next frame.
+     * @param sourceUrl The URL the file was listed under, or null; a listed file replaces its preview tile
+     */
+    public void addMediaToDisplay(String filePath, String sourceUrl) {
+        // 添加媒体文件到适配器；重复的文件由适配器忽略
+        if (mediaAdapter != null && new File(filePath).exists()) {
+            mediaAdapter.addItem(filePath, sourceUrl);
+        }
     }
 
     private void startDownload(String url) {
@@ -553,13 +515,12 @@ public class MainActivity extends AppCompatActivity {
         downloadButton.setEnabled(false);
         webCrawlButton.setVisibility(View.GONE); // Hide the web crawl button during processing
         progressContainer.setVisibility(View.VISIBLE);
-        statusText.setText(getString(R.string.processing_url, url));
-        autoScrollToBottom();
+        statusLog.clear();
+        statusLog.add(getString(R.string.processing_url, url));
 
         // Create download task
-        DownloadTask task = new DownloadTask(this, statusText, progressBar, progressText, progressContainer, downloadButton);
+        DownloadTask task = new DownloadTask(this, statusLog, progressBar, progressText, progressContainer, downloadButton);
         task.execute(url);
-        autoScrollToBottom(); // Scroll to bottom initially when starting download
     }
     
     /**
@@ -568,8 +529,7 @@ public class MainActivity extends AppCompatActivity {
     public void showWebCrawlOption() {
         runOnUiThread(() -> {
             webCrawlButton.setVisibility(View.VISIBLE);
-                    statusText.append("\n" + getString(R.string.json_parsing_failed_web_crawl, getString(R.string.webview_title)));
-                    autoScrollToBottom();
+            statusLog.add(getString(R.string.json_parsing_failed_web_crawl, getString(R.string.webview_title)));
         });
     }
     
@@ -589,19 +549,17 @@ public class MainActivity extends AppCompatActivity {
                         getSystemService(android.content.Context.CLIPBOARD_SERVICE);
                     android.content.ClipData clip = android.content.ClipData.newPlainText("Content", contentText);
                     clipboard.setPrimaryClip(clip);
-                    statusText.append("\n" + getString(R.string.desc_copied) + "\n" + contentText);
+                    statusLog.add(getString(R.string.desc_copied) + "\n" + contentText);
                 } else {
-                    statusText.append("\n" + getString(R.string.desc_not_found));
+                    statusLog.add(getString(R.string.desc_not_found));
                 }
-                autoScrollToBottom();
 
                 if (imageUrls != null && !imageUrls.isEmpty()) {
                     // 清除之前显示的图片和记录
                     clearImageViews();
 
                     // Process the found image URLs
-                    statusText.append("\n" + getString(R.string.found_images_via_web_crawl, imageUrls.size()));
-                    autoScrollToBottom();
+                    statusLog.add(getString(R.string.found_images_via_web_crawl, imageUrls.size()));
 
                     // Transform the URLs using the XHSDownloader's transformXhsCdnUrl method to get better quality images
                     List<String> transformedUrls = new ArrayList<>();
@@ -616,19 +574,16 @@ public class MainActivity extends AppCompatActivity {
                         }
                     }
 
-                    statusText.append("\n" + getString(R.string.converted_cdn_original_images));
-                    autoScrollToBottom();
+                    statusLog.add(getString(R.string.converted_cdn_original_images));
 
                     for (String url : transformedUrls) {
-                        statusText.append("\n" + url);
-                        autoScrollToBottom();
+                        statusLog.add(url);
                     }
 
                     // Start downloading the transformed images
                     processImageUrls(new ArrayList<>(transformedUrls)); // Convert to ArrayList for compatibility
                 } else {
-                    statusText.append("\n" + getString(R.string.no_images_found_via_web_crawl));
-                    autoScrollToBottom();
+                    statusLog.add(getString(R.string.no_images_found_via_web_crawl));
                 }
             }
         } else if (requestCode == SETTINGS_REQUEST_CODE) {
@@ -648,29 +603,37 @@ public class MainActivity extends AppCompatActivity {
                 // Create a temporary XHSDownloader to handle the downloads
                 XHSDownloader xhsDownloader = new XHSDownloader(this, new DownloadCallback() {
                     @Override
-                    public void onFileDownloaded(String filePath) {
-                        // Add the downloaded file to the display on the UI thread
-                        runOnUiThread(() -> addMediaToDisplay(filePath));
+                    public void onFileDownloaded(String filePath, String sourceUrl) {
+                        // Checked here on the download thread; the grid picks it up on the next frame
+                        addMediaToDisplay(filePath, sourceUrl);
                     }
 
                     @Override
-                    public void onDownloadError(String error, String originalUrl) {
+                    public void onMediaListed(String sourceUrl, String previewUrl, int width, int height) {
+                        // Crawled URLs are never listed
+                    }
+
+                    @Override
+                    public void onDownloadError(DownloadEvent.ErrorCode code, String error, String originalUrl) {
                         runOnUiThread(() -> {
-                            statusText.append("\n" + getString(R.string.download_error_for_url, error, originalUrl));
-                            autoScrollToBottom();
+                            statusLog.add(getString(R.string.download_error_for_url, error, originalUrl));
                         });
                     }
                     
                     @Override
                     public void onDownloadProgress(String status) {
                         runOnUiThread(() -> {
-                            statusText.append("\n" + status);
-                            autoScrollToBottom();
+                            statusLog.add(status);
                         });
                     }
 
                     @Override
-                    public void onDownloadProgressUpdate(long downloaded, long total) {
+                    public void onDownloadProgressUpdate(String itemId, long downloaded, long total) {
+                        // Not used in this context
+                    }
+
+                    @Override
+                    public void onTransferEnded(String itemId, boolean succeeded) {
                         // Not used in this context
                     }
                 });
@@ -691,14 +654,12 @@ public class MainActivity extends AppCompatActivity {
                 }
                 
                 runOnUiThread(() -> {
-                    statusText.append("\n" + getString(R.string.all_downloads_completed));
-                    autoScrollToBottom();
+                    statusLog.add(getString(R.string.all_downloads_completed));
                 });
             } catch (Exception e) {
                 Log.e("MainActivity", "Error processing image URLs", e);
                 runOnUiThread(() -> {
-                statusText.append("\n" + getString(R.string.error_processing_image_urls, e.getMessage()));
-                autoScrollToBottom();
+                statusLog.add(getString(R.string.error_processing_image_urls, e.getMessage()));
             });
             }
         }).start();
@@ -750,35 +711,7 @@ public class MainActivity extends AppCompatActivity {
      * Determine the appropriate file extension based on the URL
      */
     private String determineFileExtension(String url) {
-        if (url != null) {
-            // Check for common video extensions in the URL first
-            if (url.toLowerCase().contains(".mp4")) {
-                return "mp4";
-            } else if (url.toLowerCase().contains(".mov")) {
-                return "mov";
-            } else if (url.toLowerCase().contains(".avi")) {
-                return "avi";
-            } else if (url.toLowerCase().contains(".mkv")) {
-                return "mkv";
-            } else if (url.toLowerCase().contains(".webm")) {
-                return "webm";
-            }
-            // Check for common image extensions in the URL
-            else if (url.toLowerCase().contains(".jpg") || url.toLowerCase().contains(".jpeg")) {
-                return "jpg";
-            } else if (url.toLowerCase().contains(".png")) {
-                return "png";
-            } else if (url.toLowerCase().contains(".gif")) {
-                return "gif";
-            } else if (url.toLowerCase().contains(".webp")) {
-                return "webp";
-            }
-        }
-        // If URL has "video" in it or "sns-video" (Xiaohongshu video pattern), assume it's a video
-        if (url != null && (url.contains("video") || url.contains("sns-video"))) {
-            return "mp4";
-        }
-        return "jpg"; // Default fallback for images
+        return MediaClassifier.guessFromUrl(url).extension;
     }
     
     @Override
@@ -793,6 +726,12 @@ public class MainActivity extends AppCompatActivity {
         if (itemId == R.id.action_settings) {
             openSettingsScreen();
             return true;
+        } else if (itemId == R.id.action_history) {
+            startActivity(new Intent(this, HistoryActivity.class));
+            return true;
+        } else if (itemId == R.id.action_export_log) {
+            exportStatusLog();
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -3,57 +3,199 @@ package com.neoruaa.xhsdn;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import androidx.annotation.NonNull;
+import androidx.appcompat.widget.AppCompatImageView;
+import androidx.core.content.ContextCompat;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * 瀑布流媒体适配器
+ * Items can be added from any thread. They are buffered and applied once per frame, so a burst of
+ * finished downloads becomes one range insert and one layout pass instead of one per file.
  */
 public class MediaAdapter extends RecyclerView.Adapter<MediaAdapter.MediaViewHolder> {
     private static final String TAG = "MediaAdapter";
-    private List<String> mediaFiles = new ArrayList<>();
+    // Longest side of a decoded thumbnail
+    private static final int THUMBNAIL_SIZE = 800;
+    private static final int BADGE_SIZE_DP = 48;
+
+    private static final int KIND_IMAGE = 0;
+    private static final int KIND_LIVE_PHOTO = 1;
+    private static final int KIND_VIDEO = 2;
+    private static final int KIND_OTHER = 3;
+    // Listed by the note but not downloaded yet; shows the preview rendition
+    private static final int KIND_PREVIEW = 4;
+
+    // Rebinds a tile whose original just replaced its preview, keeping the preview up until the original decodes
+    private static final Object PAYLOAD_ORIGINAL = new Object();
+
+    // Main thread only, like everything the RecyclerView reads
+    private List<MediaItem> mediaItems = new ArrayList<>();
+    // Positions of preview tiles still waiting for their file, by listed URL
+    private final Map<String, Integer> previewPositions = new HashMap<>();
+    // Files already in the grid, so a file reported twice only shows once
+    private final Set<String> shownFiles = new HashSet<>();
+    private long nextItemId = 0;
+    private OnItemsAppendedListener onItemsAppendedListener;
+
+    // Guarded by itself; filled from any thread, drained on the next frame
+    private final List<PendingItem> pendingItems = new ArrayList<>();
+    private boolean flushScheduled = false;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Choreographer.FrameCallback flushCallback = frameTimeNanos -> flushPendingItems();
     private Context context;
+    private final ThumbnailLoader thumbnailLoader;
+    // Shared by every item view; each view only positions them when drawing, so nothing is rasterized per bind
+    private final Drawable playBadge;
+    private final Drawable livePhotoBadge;
 
     public MediaAdapter(Context context) {
         this.context = context;
+        this.thumbnailLoader = ThumbnailLoader.getInstance(context);
+        this.playBadge = ContextCompat.getDrawable(context, R.drawable.play_button_overlay);
+        this.livePhotoBadge = ContextCompat.getDrawable(context, R.drawable.live_photo_overlay);
+        // Ids follow the item, so a preview replaced by its file keeps its view and the grid doesn't reshuffle
+        setHasStableIds(true);
     }
 
     /**
-     * 添加媒体文件
+     * Notified after a flush that appended downloaded files to the end of the grid
      */
-    public void addItem(String filePath) {
-        mediaFiles.add(filePath);
-        notifyItemInserted(mediaFiles.size() - 1);
+    public interface OnItemsAppendedListener {
+        void onItemsAppended(int lastPosition);
+    }
+
+    public void setOnItemsAppendedListener(OnItemsAppendedListener listener) {
+        this.onItemsAppendedListener = listener;
+    }
+
+    /**
+     * 添加预览项，原图下载完成后由 {@link #addItem} 替换
+     * @param previewUrl Small rendition to show meanwhile, or null to show an empty tile
+     * @param width Width the note lists for the media, or 0 if unknown
+     * @param height Height the note lists for the media, or 0 if unknown
+     */
+    public void addPreview(String sourceUrl, String previewUrl, int width, int height) {
+        enqueue(new PendingItem(null, sourceUrl, previewUrl, width, height));
+    }
+
+    /**
+     * 添加媒体文件；已存在的文件不会重复添加
+     * @param sourceUrl The URL the file was listed under, or null. A listed file replaces its preview in place
+     */
+    public void addItem(String filePath, String sourceUrl) {
+        // The file may have been downloaded over an earlier copy that is still cached by path
+        thumbnailLoader.invalidate(filePath);
+        enqueue(new PendingItem(filePath, sourceUrl, null, 0, 0));
     }
 
     /**
-     * 清除所有项
+     * 清除所有项，包括还未显示的. Must be called on the main thread.
      */
     public void clearItems() {
-        int size = mediaFiles.size();
-        mediaFiles.clear();
+        synchronized (pendingItems) {
+            pendingItems.clear();
+        }
+        int size = mediaItems.size();
+        mediaItems.clear();
+        previewPositions.clear();
+        shownFiles.clear(); // 允许重复下载时再次显示
         notifyItemRangeRemoved(0, size);
     }
 
+    private void enqueue(PendingItem item) {
+        synchronized (pendingItems) {
+            pendingItems.add(item);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        // Choreographer is per thread, so the frame callback has to be registered from the main thread
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Choreographer.getInstance().postFrameCallback(flushCallback);
+        } else {
+            mainHandler.post(() -> Choreographer.getInstance().postFrameCallback(flushCallback));
+        }
+    }
+
+    /**
+     * Applies everything queued since the last frame: appends become one range insert, files that
+     * replace a preview become item changes
+     */
+    private void flushPendingItems() {
+        List<PendingItem> batch;
+        synchronized (pendingItems) {
+            batch = new ArrayList<>(pendingItems);
+            pendingItems.clear();
+            flushScheduled = false;
+        }
+
+        int firstAppended = mediaItems.size();
+        boolean filesAppended = false;
+        List<Integer> replaced = new ArrayList<>();
+        for (PendingItem pending : batch) {
+            if (pending.filePath == null) {
+                if (!previewPositions.containsKey(pending.sourceUrl)) {
+                    previewPositions.put(pending.sourceUrl, mediaItems.size());
+                    mediaItems.add(new MediaItem(nextItemId++, null, KIND_PREVIEW, pending.width, pending.height, pending.previewUrl));
+                }
+                continue;
+            }
+            if (!shownFiles.add(pending.filePath)) {
+                continue;
+            }
+            Integer position = pending.sourceUrl != null ? previewPositions.remove(pending.sourceUrl) : null;
+            if (position != null) {
+                MediaItem preview = mediaItems.get(position);
+                mediaItems.set(position, new MediaItem(preview.id, pending.filePath, classify(pending.filePath),
+                        preview.width, preview.height, null));
+                // A preview appended in this same batch is bound fresh by the insert
+                if (position < firstAppended) {
+                    replaced.add(position);
+                }
+            } else {
+                mediaItems.add(new MediaItem(nextItemId++, pending.filePath, classify(pending.filePath), 0, 0, null));
+                filesAppended = true;
+            }
+        }
+
+        for (int position : replaced) {
+            notifyItemChanged(position, PAYLOAD_ORIGINAL);
+        }
+        if (mediaItems.size() > firstAppended) {
+            notifyItemRangeInserted(firstAppended, mediaItems.size() - firstAppended);
+        }
+        if (filesAppended && onItemsAppendedListener != null) {
+            onItemsAppendedListener.onItemsAppended(mediaItems.size() - 1);
+        }
+    }
+
     @NonNull
     @Override
     public MediaViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
-        ImageView imageView = new ImageView(context);
+        BadgedImageView imageView = new BadgedImageView(context, dpToPx(BADGE_SIZE_DP));
         imageView.setLayoutParams(new ViewGroup.LayoutParams(
             ViewGroup.LayoutParams.MATCH_PARENT,
             ViewGroup.LayoutParams.WRAP_CONTENT
@@ -62,87 +204,247 @@ public class MediaAdapter extends RecyclerView.Adapter<MediaAdapter.MediaViewHol
         imageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
         int padding = dpToPx(4);
         imageView.setPadding(padding, padding, padding, padding);
-        return new MediaViewHolder(imageView);
+        imageView.setBackgroundColor(0xFFEEEEEE);
+        MediaViewHolder holder = new MediaViewHolder(imageView);
+        imageView.setOnClickListener(holder);
+        return holder;
     }
 
     @Override
     public void onBindViewHolder(@NonNull MediaViewHolder holder, int position) {
-        String filePath = mediaFiles.get(position);
-        File mediaFile = new File(filePath);
-        
-        if (mediaFile.exists()) {
-            String mimeType = getMimeType(filePath);
-            
-            if (isImageFile(mimeType)) {
-                // 检查是否为Live Photo（通过文件名中是否包含"_live"来判断）
-                if (isLivePhotoFile(filePath)) {
-                    // 显示Live Photo图片并添加overlay图标
-                    Bitmap bitmap = decodeSampledBitmapFromFile(filePath, 800, 800);
-                    if (bitmap != null) {
-                        holder.imageView.setBackgroundColor(0xFFEEEEEE);
-                        // Overlay the live photo icon on the image
-                        try {
-                            Bitmap livePhotoIconBitmap = getBitmapFromVectorDrawable(context, R.drawable.live_photo_overlay, dpToPx(200), dpToPx(200));
-                            Bitmap combinedBitmap = combineBitmapWithPlayIcon(bitmap, livePhotoIconBitmap, dpToPx(16)); // 16dp padding
-                            holder.imageView.setImageBitmap(combinedBitmap);
-                        } catch (Exception e) {
-                            // If overlay fails, just show the image
-                            holder.imageView.setImageBitmap(bitmap);
-                            Log.e(TAG, "Failed to add live photo icon overlay: " + e.getMessage());
-                        }
-                        holder.imageView.setOnClickListener(v -> openImageInExternalApp(filePath));
-                    }
-                } else {
-                    // 显示普通图片
-                    Bitmap bitmap = decodeSampledBitmapFromFile(filePath, 800, 800);
-                    if (bitmap != null) {
-                        holder.imageView.setImageBitmap(bitmap);
-                        holder.imageView.setBackgroundColor(0xFFEEEEEE);
-                        holder.imageView.setOnClickListener(v -> openImageInExternalApp(filePath));
-                    }
-                }
-            } else if (isVideoFile(mimeType)) {
-                // 显示视频缩略图
-                Bitmap thumbnail = createVideoThumbnail(filePath);
-                if (thumbnail != null) {
-                    holder.imageView.setBackgroundColor(0xFFEEEEEE);
-                    // Overlay the play icon on the video thumbnail
-                    try {
-                        Bitmap playIconBitmap = getBitmapFromVectorDrawable(context, R.drawable.play_button_overlay, dpToPx(200), dpToPx(200));
-                        Bitmap combinedBitmap = combineBitmapWithPlayIcon(thumbnail, playIconBitmap, dpToPx(16)); // 16dp padding
-                        holder.imageView.setImageBitmap(combinedBitmap);
-                    } catch (Exception e) {
-                        // If overlay fails, just show the thumbnail
-                        holder.imageView.setImageBitmap(thumbnail);
-                        Log.e(TAG, "Failed to add play icon overlay: " + e.getMessage());
-                    }
-                    holder.imageView.setOnClickListener(v -> openVideoInExternalApp(filePath));
+        bind(holder, mediaItems.get(position), true);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull MediaViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.contains(PAYLOAD_ORIGINAL)) {
+            // The preview stays until the original's thumbnail is delivered
+            bind(holder, mediaItems.get(position), false);
+        } else {
+            onBindViewHolder(holder, position);
+        }
+    }
+
+    private void bind(MediaViewHolder holder, MediaItem item, boolean clear) {
+        // Binding only swaps references on the holder; the thumbnail arrives through holder's callback
+        holder.item = item;
+        if (clear) {
+            // 先清空旧内容，缩略图在后台解码完成后再显示
+            holder.clearThumbnail();
+        }
+        // With the note's size the tile already has its final height, so the thumbnail arriving doesn't move the grid
+        holder.imageView.setAspectRatio(item.width > 0 && item.height > 0 ? (float) item.height / item.width : 0f);
+
+        switch (item.kind) {
+            case KIND_PREVIEW:
+                if (item.previewUrl != null) {
+                    thumbnailLoader.loadPreview(holder.imageView, item.previewUrl, THUMBNAIL_SIZE, holder);
                 } else {
-                    holder.imageView.setImageResource(android.R.drawable.ic_media_play);
-                    holder.imageView.setBackgroundColor(0xFFEEEEEE);
-                    holder.imageView.setOnClickListener(v -> openVideoInExternalApp(filePath));
+                    thumbnailLoader.cancel(holder.imageView);
                 }
-            } else {
+                break;
+            case KIND_IMAGE:
+            case KIND_LIVE_PHOTO:
+                thumbnailLoader.load(holder.imageView, item.filePath, false, THUMBNAIL_SIZE, holder);
+                break;
+            case KIND_VIDEO:
+                thumbnailLoader.load(holder.imageView, item.filePath, true, THUMBNAIL_SIZE, holder);
+                break;
+            default:
                 // 其他文件类型
+                thumbnailLoader.cancel(holder.imageView);
                 holder.imageView.setImageResource(android.R.drawable.ic_menu_gallery);
-                holder.imageView.setBackgroundColor(0xFFEEEEEE);
-                holder.imageView.setOnClickListener(v -> openFileInExternalApp(filePath));
-            }
+                break;
         }
     }
 
+    @Override
+    public void onViewRecycled(@NonNull MediaViewHolder holder) {
+        // The view is about to show another item; its pending decode is no longer wanted
+        thumbnailLoader.cancel(holder.imageView);
+        holder.clearThumbnail();
+        holder.item = null;
+    }
+
     @Override
     public int getItemCount() {
-        return mediaFiles.size();
+        return mediaItems.size();
     }
 
-    static class MediaViewHolder extends RecyclerView.ViewHolder {
-        ImageView imageView;
+    @Override
+    public long getItemId(int position) {
+        return mediaItems.get(position).id;
+    }
 
-        MediaViewHolder(ImageView itemView) {
+    class MediaViewHolder extends RecyclerView.ViewHolder implements ThumbnailLoader.Callback, View.OnClickListener {
+        BadgedImageView imageView;
+        MediaItem item;
+        // The loader's bitmap this view shows; handed back when the view stops showing it
+        Bitmap shownBitmap;
+
+        MediaViewHolder(BadgedImageView itemView) {
             super(itemView);
             this.imageView = itemView;
         }
+
+        @Override
+        public void onThumbnailLoaded(Bitmap bitmap) {
+            if (item == null) {
+                thumbnailLoader.release(bitmap);
+                return;
+            }
+            if (bitmap == null) {
+                if (item.kind == KIND_VIDEO) {
+                    imageView.setImageResource(android.R.drawable.ic_media_play);
+                }
+                return;
+            }
+            thumbnailLoader.release(shownBitmap);
+            shownBitmap = bitmap;
+            imageView.setImageBitmap(bitmap);
+            // 视频显示播放图标，Live Photo显示实况图标
+            if (item.kind == KIND_VIDEO) {
+                imageView.setBadge(playBadge);
+            } else if (item.kind == KIND_LIVE_PHOTO) {
+                imageView.setBadge(livePhotoBadge);
+            }
+        }
+
+        void clearThumbnail() {
+            // Detach first so the bitmap is no longer drawn once it may be reused
+            imageView.setImageDrawable(null);
+            imageView.setBadge(null);
+            thumbnailLoader.release(shownBitmap);
+            shownBitmap = null;
+        }
+
+        @Override
+        public void onClick(View v) {
+            if (item == null || item.kind == KIND_PREVIEW) {
+                // Nothing to open until the original is downloaded
+                return;
+            }
+            switch (item.kind) {
+                case KIND_IMAGE:
+                case KIND_LIVE_PHOTO:
+                    openImageInExternalApp(item.filePath);
+                    break;
+                case KIND_VIDEO:
+                    openVideoInExternalApp(item.filePath);
+                    break;
+                default:
+                    openFileInExternalApp(item.filePath);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * One grid entry; its kind is worked out once when it is added, not on every bind
+     */
+    private static final class MediaItem {
+        final long id;
+        final String filePath;
+        final int kind;
+        // As listed by the note; 0 when unknown
+        final int width;
+        final int height;
+        // Only for KIND_PREVIEW, whose filePath is null
+        final String previewUrl;
+
+        MediaItem(long id, String filePath, int kind, int width, int height, String previewUrl) {
+            this.id = id;
+            this.filePath = filePath;
+            this.kind = kind;
+            this.width = width;
+            this.height = height;
+            this.previewUrl = previewUrl;
+        }
+    }
+
+    /**
+     * An add waiting for the next frame; a null filePath means a preview
+     */
+    private static final class PendingItem {
+        final String filePath;
+        final String sourceUrl;
+        final String previewUrl;
+        final int width;
+        final int height;
+
+        PendingItem(String filePath, String sourceUrl, String previewUrl, int width, int height) {
+            this.filePath = filePath;
+            this.sourceUrl = sourceUrl;
+            this.previewUrl = previewUrl;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Thumbnail view that draws an optional badge (play button / live photo icon) centered on top of
+     * the image, so the badge never has to be baked into the thumbnail bitmap
+     */
+    static class BadgedImageView extends AppCompatImageView {
+        private final int badgeSize;
+        private Drawable badge;
+        // Height / width of the content, or 0 to size to the drawable
+        private float aspectRatio;
+
+        BadgedImageView(Context context, int badgeSize) {
+            super(context);
+            this.badgeSize = badgeSize;
+        }
+
+        void setAspectRatio(float aspectRatio) {
+            if (this.aspectRatio != aspectRatio) {
+                this.aspectRatio = aspectRatio;
+                requestLayout();
+            }
+        }
+
+        @Override
+        protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+            if (aspectRatio <= 0f) {
+                super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+                return;
+            }
+            // The column decides the width; the height follows from it without looking at the drawable
+            int width = MeasureSpec.getSize(widthMeasureSpec);
+            int contentWidth = width - getPaddingLeft() - getPaddingRight();
+            int height = Math.round(contentWidth * aspectRatio) + getPaddingTop() + getPaddingBottom();
+            setMeasuredDimension(width, height);
+        }
+
+        void setBadge(Drawable badge) {
+            if (this.badge != badge) {
+                this.badge = badge;
+                invalidate();
+            }
+        }
+
+        @Override
+        protected void onDraw(Canvas canvas) {
+            super.onDraw(canvas);
+            if (badge != null) {
+                // Every view uses the same size, so a vector badge keeps its cached raster
+                int left = (getWidth() - badgeSize) / 2;
+                int top = (getHeight() - badgeSize) / 2;
+                badge.setBounds(left, top, left + badgeSize, top + badgeSize);
+                badge.draw(canvas);
+            }
+        }
+    }
+
+    private int classify(String filePath) {
+        String mimeType = getMimeType(filePath);
+        if (isImageFile(mimeType)) {
+            // 检查是否为Live Photo（通过文件名中是否包含"_live"来判断）
+            return isLivePhotoFile(filePath) ? KIND_LIVE_PHOTO : KIND_IMAGE;
+        } else if (isVideoFile(mimeType)) {
+            return KIND_VIDEO;
+        }
+        return KIND_OTHER;
     }
 
     // 辅助方法
@@ -178,42 +480,6 @@ public class MediaAdapter extends RecyclerView.Adapter<MediaAdapter.MediaViewHol
         return null;
     }
 
-    private Bitmap decodeSampledBitmapFromFile(String filePath, int reqWidth, int reqHeight) {
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(filePath, options);
-
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
-
-        options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFile(filePath, options);
-    }
-
-    private int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
-        final int height = options.outHeight;
-        final int width = options.outWidth;
-        int inSampleSize = 1;
-
-        if (height > reqHeight || width > reqWidth) {
-            final int heightRatio = Math.round((float) height / (float) reqHeight);
-            final int widthRatio = Math.round((float) width / (float) reqWidth);
-            inSampleSize = heightRatio < widthRatio ? heightRatio : widthRatio;
-        }
-
-        return inSampleSize;
-    }
-
-    private Bitmap createVideoThumbnail(String filePath) {
-        try {
-            android.media.MediaMetadataRetriever retriever = new android.media.MediaMetadataRetriever();
-            retriever.setDataSource(filePath);
-            return retriever.getFrameAtTime(1000000, android.media.MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-
     private void openImageInExternalApp(String imagePath) {
         Intent intent = new Intent(Intent.ACTION_VIEW);
         File file = new File(imagePath);
@@ -322,34 +588,4 @@ public class MediaAdapter extends RecyclerView.Adapter<MediaAdapter.MediaViewHol
         float density = context.getResources().getDisplayMetrics().density;
         return Math.round(dp * density);
     }
-    
-    /**
-     * Convert a vector drawable to bitmap
-     */
-    private Bitmap getBitmapFromVectorDrawable(Context context, int drawableId, int width, int height) {
-        Drawable drawable = context.getResources().getDrawable(drawableId);
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(bitmap);
-        drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
-        drawable.draw(canvas);
-        return bitmap;
-    }
-    
-    /**
-     * Combine a thumbnail with a play icon
-     */
-    private Bitmap combineBitmapWithPlayIcon(Bitmap thumbnail, Bitmap playIcon, int padding) {
-        // Create a copy of the thumbnail to draw on
-        Bitmap result = thumbnail.copy(thumbnail.getConfig(), true);
-        Canvas canvas = new Canvas(result);
-        
-        // Calculate the position to draw the play icon (centered with padding)
-        int iconX = (canvas.getWidth() - playIcon.getWidth()) / 2;
-        int iconY = (canvas.getHeight() - playIcon.getHeight()) / 2;
-        
-        // Draw the play icon in the center of the thumbnail
-        canvas.drawBitmap(playIcon, iconX, iconY, null);
-        
-        return result;
-    }
 }
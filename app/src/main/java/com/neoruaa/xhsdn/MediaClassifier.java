@@ -0,0 +1,290 @@
+package com.neoruaa.xhsdn;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import okio.BufferedSource;
+
+/**
+ * Single place that decides what kind of media a download is.
+ * The authoritative answer comes from the magic bytes at the start of the body, with the
+ * Content-Type header and finally the URL as fallbacks. URL-only guesses are used before a
+ * request has been made (e.g. to split a note into images and videos).
+ */
+public final class MediaClassifier {
+    // Enough to see the ISO BMFF "ftyp" box and its major brand, and the DocType of a Matroska EBML header
+    private static final int SNIFF_LENGTH = 64;
+
+    public enum MediaType {
+        JPEG("jpg", "image/jpeg"),
+        PNG("png", "image/png"),
+        WEBP("webp", "image/webp"),
+        GIF("gif", "image/gif"),
+        HEIF("heic", "image/heif"),
+        MP4("mp4", "video/mp4"),
+        MOV("mov", "video/quicktime"),
+        AVI("avi", "video/x-msvideo"),
+        MKV("mkv", "video/x-matroska"),
+        WEBM("webm", "video/webm");
+
+        public final String extension;
+        public final String mimeType;
+
+        MediaType(String extension, String mimeType) {
+            this.extension = extension;
+            this.mimeType = mimeType;
+        }
+
+        public boolean isImage() {
+            return mimeType.startsWith("image/");
+        }
+
+        public boolean isVideo() {
+            return mimeType.startsWith("video/");
+        }
+
+        /**
+         * True for ISO BMFF video (MP4/MOV), the only kind that has a moov box and can go into a live photo
+         */
+        public boolean isIsoMedia() {
+            return this == MP4 || this == MOV;
+        }
+
+        /**
+         * @return The media type for a file extension (without the dot), or null if unknown
+         */
+        public static MediaType fromExtension(String extension) {
+            if (extension == null) {
+                return null;
+            }
+            switch (extension.toLowerCase(Locale.ROOT)) {
+                case "jpg":
+                case "jpeg":
+                    return JPEG;
+                case "png":
+                    return PNG;
+                case "webp":
+                    return WEBP;
+                case "gif":
+                    return GIF;
+                case "heic":
+                case "heif":
+                    return HEIF;
+                case "mp4":
+                case "m4v":
+                    return MP4;
+                case "mov":
+                    return MOV;
+                case "avi":
+                    return AVI;
+                case "mkv":
+                    return MKV;
+                case "webm":
+                    return WEBM;
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * @return The media type for a file name based on its extension, or null if unknown
+         */
+        public static MediaType fromFileName(String fileName) {
+            if (fileName == null) {
+                return null;
+            }
+            int dotIndex = fileName.lastIndexOf('.');
+            if (dotIndex == -1 || dotIndex == fileName.length() - 1) {
+                return null;
+            }
+            return fromExtension(fileName.substring(dotIndex + 1));
+        }
+    }
+
+    private MediaClassifier() {
+    }
+
+    /**
+     * Classifies a response body from its first bytes without consuming them: the bytes stay
+     * buffered in {@code source} and are written out with the rest of the body afterwards.
+     * Only the first {@value #SNIFF_LENGTH} bytes are requested, the stream is never buffered whole.
+     * @param source The response body source
+     * @param contentType The Content-Type header, may be null
+     * @param url The request URL, used as the last resort
+     * @return The detected media type, never null
+     */
+    public static MediaType classify(BufferedSource source, String contentType, String url) throws IOException {
+        source.request(SNIFF_LENGTH);
+        int available = (int) Math.min(SNIFF_LENGTH, source.getBuffer().size());
+        byte[] head = source.peek().readByteArray(available);
+
+        MediaType sniffed = sniff(head, head.length);
+        if (sniffed != null) {
+            return sniffed;
+        }
+        MediaType declared = fromContentType(contentType);
+        if (declared != null) {
+            return declared;
+        }
+        return guessFromUrl(url);
+    }
+
+    /**
+     * Identifies a downloaded file from its first bytes
+     * @return The media type, or null if the file can't be read or the signature isn't recognised
+     */
+    public static MediaType sniff(File file) {
+        byte[] head = new byte[SNIFF_LENGTH];
+        int length = 0;
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            int read;
+            while (length < head.length && (read = inputStream.read(head, length, head.length - length)) != -1) {
+                length += read;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return sniff(head, length);
+    }
+
+    /**
+     * Identifies the container from its magic bytes
+     * @return The media type, or null if the signature isn't recognised
+     */
+    public static MediaType sniff(byte[] head, int length) {
+        if (head == null || length < 3) {
+            return null;
+        }
+        if (u(head, 0) == 0xFF && u(head, 1) == 0xD8 && u(head, 2) == 0xFF) {
+            return MediaType.JPEG;
+        }
+        if (length >= 8 && u(head, 0) == 0x89 && ascii(head, 1, "PNG")
+                && u(head, 4) == 0x0D && u(head, 5) == 0x0A && u(head, 6) == 0x1A && u(head, 7) == 0x0A) {
+            return MediaType.PNG;
+        }
+        if (length >= 12 && ascii(head, 0, "RIFF") && ascii(head, 8, "WEBP")) {
+            return MediaType.WEBP;
+        }
+        if (length >= 12 && ascii(head, 0, "RIFF") && ascii(head, 8, "AVI ")) {
+            return MediaType.AVI;
+        }
+        if (length >= 4 && u(head, 0) == 0x1A && u(head, 1) == 0x45 && u(head, 2) == 0xDF && u(head, 3) == 0xA3) {
+            // EBML header; its DocType element says whether this is WebM or plain Matroska
+            return contains(head, length, "webm") ? MediaType.WEBM : MediaType.MKV;
+        }
+        if (length >= 6 && (ascii(head, 0, "GIF87a") || ascii(head, 0, "GIF89a"))) {
+            return MediaType.GIF;
+        }
+        if (length >= 12 && ascii(head, 4, "ftyp")) {
+            String brand = new String(head, 8, 4, StandardCharsets.US_ASCII);
+            switch (brand) {
+                case "heic":
+                case "heix":
+                case "heim":
+                case "heis":
+                case "hevc":
+                case "hevx":
+                case "mif1":
+                case "msf1":
+                    return MediaType.HEIF;
+                case "qt  ":
+                    return MediaType.MOV;
+                default:
+                    return MediaType.MP4;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The media type declared by a Content-Type header, or null if it isn't a known media type
+     */
+    public static MediaType fromContentType(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        if (type.contains("video")) {
+            if (type.contains("quicktime")) return MediaType.MOV;
+            else if (type.contains("webm")) return MediaType.WEBM;
+            else if (type.contains("matroska")) return MediaType.MKV;
+            else if (type.contains("msvideo") || type.contains("avi")) return MediaType.AVI;
+            else return MediaType.MP4; // default video format
+        } else if (type.contains("image")) {
+            if (type.contains("png")) return MediaType.PNG;
+            else if (type.contains("webp")) return MediaType.WEBP;
+            else if (type.contains("gif")) return MediaType.GIF;
+            else if (type.contains("heic") || type.contains("heif")) return MediaType.HEIF;
+            else return MediaType.JPEG; // default image format
+        }
+        return null;
+    }
+
+    /**
+     * Best guess from the URL alone, for decisions that have to be made before any bytes arrive.
+     * Explicit file extensions win, then XHS video CDN markers; everything else is treated as an image.
+     * @return The guessed media type, never null
+     */
+    public static MediaType guessFromUrl(String url) {
+        if (url == null) {
+            return MediaType.JPEG;
+        }
+        String lower = url.toLowerCase(Locale.ROOT);
+        if (lower.contains(".mp4") || lower.contains(".m4v")) {
+            return MediaType.MP4;
+        } else if (lower.contains(".mov")) {
+            return MediaType.MOV;
+        } else if (lower.contains(".avi")) {
+            return MediaType.AVI;
+        } else if (lower.contains(".mkv")) {
+            return MediaType.MKV;
+        } else if (lower.contains(".webm")) {
+            return MediaType.WEBM;
+        } else if (lower.contains(".jpg") || lower.contains(".jpeg")) {
+            return MediaType.JPEG;
+        } else if (lower.contains(".png")) {
+            return MediaType.PNG;
+        } else if (lower.contains(".gif")) {
+            return MediaType.GIF;
+        } else if (lower.contains(".webp")) {
+            return MediaType.WEBP;
+        } else if (lower.contains(".heic") || lower.contains(".heif")) {
+            return MediaType.HEIF;
+        }
+
+        // XHS video CDNs (sns-video-*) and live photo streams (h264 masterUrl) carry no extension
+        if (lower.contains("video") || lower.contains("masterurl") || lower.contains("stream")
+                || lower.contains("h264")) {
+            return MediaType.MP4;
+        }
+        return MediaType.JPEG;
+    }
+
+    private static int u(byte[] bytes, int index) {
+        return bytes[index] & 0xFF;
+    }
+
+    private static boolean contains(byte[] bytes, int length, String expected) {
+        for (int offset = 0; offset + expected.length() <= length; offset++) {
+            if (ascii(bytes, offset, expected)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean ascii(byte[] bytes, int offset, String expected) {
+        if (bytes.length < offset + expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (bytes[offset + i] != (byte) expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,329 @@
+package com.neoruaa.xhsdn;
+
+import android.content.ContentValues;
+import android.os.Build;
+import android.provider.MediaStore;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import okio.Buffer;
+import okio.BufferedSource;
+
+/**
+ * Dimensions, orientation and duration of a media file, read from its headers while it is downloaded
+ * so the MediaStore row can be filled in when it is written instead of by a later media scan.
+ * Images are measured from the first bytes of the body, videos from their moov box as it streams past.
+ */
+public final class MediaMetadata {
+    // JPEG headers with large EXIF/ICC blocks can push the frame header this far in
+    private static final int MAX_IMAGE_HEAD_BYTES = 128 * 1024;
+    private static final int INITIAL_IMAGE_HEAD_BYTES = 8 * 1024;
+    private static final int FIXED_ONE = 0x10000;
+
+    public final int width;
+    public final int height;
+    // Clockwise rotation in degrees, as MediaStore stores it
+    public final int orientation;
+    // -1 for images
+    public final long durationMs;
+
+    private MediaMetadata(int width, int height, int orientation, long durationMs) {
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+        this.durationMs = durationMs;
+    }
+
+    /**
+     * Adds the known values to a MediaStore insert or update
+     */
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    public void putInto(ContentValues values) {
+        if (width > 0 && height > 0) {
+            values.put(MediaStore.MediaColumns.WIDTH, width);
+            values.put(MediaStore.MediaColumns.HEIGHT, height);
+        }
+        values.put(MediaStore.MediaColumns.ORIENTATION, orientation);
+        if (durationMs >= 0) {
+            values.put(MediaStore.MediaColumns.DURATION, durationMs);
+        }
+    }
+
+    /**
+     * Measures an image from the start of its body without consuming anything
+     * @return The metadata, or null if the format isn't supported or the header couldn't be read
+     */
+    public static MediaMetadata probeImage(BufferedSource source, MediaClassifier.MediaType type) {
+        try {
+            int wanted = INITIAL_IMAGE_HEAD_BYTES;
+            while (true) {
+                boolean ended = !source.request(wanted);
+                int available = (int) Math.min(wanted, source.getBuffer().size());
+                byte[] head = source.peek().readByteArray(available);
+                MediaMetadata metadata = fromImageHead(head, head.length, type);
+                if (metadata != null || ended || wanted >= MAX_IMAGE_HEAD_BYTES || type != MediaClassifier.MediaType.JPEG) {
+                    return metadata;
+                }
+                wanted *= 2;
+            }
+        } catch (IOException e) {
+            // The copy that follows runs into the same error and reports it
+            return null;
+        }
+    }
+
+    /**
+     * Measures an image file that is already on the device
+     * @return The metadata, or null if the format isn't supported or the header couldn't be read
+     */
+    public static MediaMetadata probeImage(File file, MediaClassifier.MediaType type) {
+        byte[] head = new byte[(int) Math.min(MAX_IMAGE_HEAD_BYTES, file.length())];
+        int length = 0;
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            int read;
+            while (length < head.length && (read = inputStream.read(head, length, head.length - length)) != -1) {
+                length += read;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return fromImageHead(head, length, type);
+    }
+
+    private static MediaMetadata fromImageHead(byte[] head, int length, MediaClassifier.MediaType type) {
+        ByteBuffer buffer = ByteBuffer.wrap(head, 0, length);
+        switch (type) {
+            case JPEG:
+                try {
+                    JpegSegmentWalker.Layout layout = JpegSegmentWalker.walk(buffer);
+                    return layout != null
+                            ? new MediaMetadata(layout.width, layout.height, exifToDegrees(layout.orientation), -1)
+                            : null;
+                } catch (IOException e) {
+                    return null;
+                }
+            case PNG:
+                // IHDR is always the first chunk
+                if (length < 24) {
+                    return null;
+                }
+                return image(buffer.getInt(16), buffer.getInt(20));
+            case GIF:
+                if (length < 10) {
+                    return null;
+                }
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                return image(buffer.getShort(6) & 0xFFFF, buffer.getShort(8) & 0xFFFF);
+            case WEBP:
+                return fromWebpHead(buffer.order(ByteOrder.LITTLE_ENDIAN), length);
+            default:
+                return null;
+        }
+    }
+
+    private static MediaMetadata fromWebpHead(ByteBuffer buffer, int length) {
+        if (length < 30) {
+            return null;
+        }
+        // The first chunk after "RIFF....WEBP" decides the layout
+        if (buffer.get(12) == 'V' && buffer.get(13) == 'P' && buffer.get(14) == '8') {
+            switch (buffer.get(15)) {
+                case ' ':
+                    // Lossy: frame tag, start code 9D 01 2A, then 14-bit width and height
+                    return image(buffer.getShort(26) & 0x3FFF, buffer.getShort(28) & 0x3FFF);
+                case 'L': {
+                    // Lossless: signature 0x2F, then 14-bit width - 1 and height - 1
+                    int bits = buffer.getInt(21);
+                    return image((bits & 0x3FFF) + 1, ((bits >> 14) & 0x3FFF) + 1);
+                }
+                case 'X':
+                    // Extended: 24-bit canvas width - 1 and height - 1
+                    return image(readU24(buffer, 24) + 1, readU24(buffer, 27) + 1);
+                default:
+                    return null;
+            }
+        }
+        return null;
+    }
+
+    private static MediaMetadata image(int width, int height) {
+        return width > 0 && height > 0 ? new MediaMetadata(width, height, 0, -1) : null;
+    }
+
+    private static int readU24(ByteBuffer buffer, int offset) {
+        return (buffer.get(offset) & 0xFF) | (buffer.get(offset + 1) & 0xFF) << 8 | (buffer.get(offset + 2) & 0xFF) << 16;
+    }
+
+    private static int exifToDegrees(int exifOrientation) {
+        switch (exifOrientation) {
+            case 6:
+                return 90;
+            case 3:
+                return 180;
+            case 8:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Reads the duration from mvhd and the size and rotation of the first visual track from its tkhd
+     * @param moov A complete moov box, starting with its header
+     * @return The metadata, or null if the box can't be parsed
+     */
+    static MediaMetadata fromMoov(ByteBuffer moov) {
+        Mp4Faststart.BoxHeader moovHeader = Mp4Faststart.BoxHeader.read(moov, 0, moov.limit(), moov.limit());
+        if (moovHeader == null || !moovHeader.is("moov")) {
+            return null;
+        }
+        long durationMs = -1;
+        int width = 0;
+        int height = 0;
+        int orientation = 0;
+
+        int end = (int) moovHeader.size;
+        int child = moovHeader.headerSize;
+        while (child < end) {
+            Mp4Faststart.BoxHeader header = Mp4Faststart.BoxHeader.read(moov, child, end, end - child);
+            if (header == null) {
+                break;
+            }
+            int body = child + header.headerSize;
+            int childEnd = child + (int) header.size;
+            if (header.is("mvhd") && childEnd - body >= 32) {
+                boolean wide = moov.get(body) == 1;
+                long timescale = moov.getInt(body + (wide ? 20 : 12)) & 0xFFFFFFFFL;
+                long duration = wide ? moov.getLong(body + 24) : moov.getInt(body + 16) & 0xFFFFFFFFL;
+                if (timescale > 0 && duration >= 0) {
+                    durationMs = duration * 1000 / timescale;
+                }
+            } else if (header.is("trak") && width == 0) {
+                int trakChild = body;
+                while (trakChild < childEnd) {
+                    Mp4Faststart.BoxHeader trakHeader = Mp4Faststart.BoxHeader.read(moov, trakChild, childEnd, childEnd - trakChild);
+                    if (trakHeader == null) {
+                        break;
+                    }
+                    if (trakHeader.is("tkhd")) {
+                        int tkhd = trakChild + trakHeader.headerSize;
+                        // Skip the times, track id and duration, then reserved/layer/group/volume
+                        int matrix = tkhd + (moov.get(tkhd) == 1 ? 36 : 24) + 16;
+                        if (matrix + 44 <= trakChild + trakHeader.size) {
+                            int trackWidth = moov.getInt(matrix + 36) >>> 16;
+                            int trackHeight = moov.getInt(matrix + 40) >>> 16;
+                            // Audio tracks have no size
+                            if (trackWidth > 0 && trackHeight > 0) {
+                                width = trackWidth;
+                                height = trackHeight;
+                                orientation = matrixToDegrees(moov.getInt(matrix), moov.getInt(matrix + 4),
+                                        moov.getInt(matrix + 12), moov.getInt(matrix + 16));
+                            }
+                        }
+                        break;
+                    }
+                    trakChild += (int) trakHeader.size;
+                }
+            }
+            child = childEnd;
+        }
+        if (durationMs < 0 && width == 0) {
+            return null;
+        }
+        return new MediaMetadata(width, height, orientation, durationMs);
+    }
+
+    private static int matrixToDegrees(int a, int b, int c, int d) {
+        if (a == 0 && b == FIXED_ONE && c == -FIXED_ONE && d == 0) {
+            return 90;
+        } else if (a == -FIXED_ONE && b == 0 && c == 0 && d == -FIXED_ONE) {
+            return 180;
+        } else if (a == 0 && b == -FIXED_ONE && c == FIXED_ONE && d == 0) {
+            return 270;
+        }
+        return 0;
+    }
+
+    /**
+     * Follows the top-level boxes of a video as its bytes are copied and keeps a copy of the moov box
+     * (at most {@link Mp4Faststart#MAX_MOVED_BYTES}) to read the metadata from. The media data is only
+     * counted, never copied, so it works the same whether the moov comes first or last.
+     */
+    public static final class Mp4Scanner {
+        private final byte[] header = new byte[Mp4Faststart.MAX_HEADER_SIZE];
+        private int headerFill = 0;
+        private long boxRemaining = 0;
+        // Non-null while the moov box is being collected
+        private Buffer moov;
+        private boolean finished = false;
+        private MediaMetadata result;
+
+        /**
+         * Feeds the next {@code byteCount} bytes of the video, found at {@code offset} in {@code buffer},
+         * without consuming them
+         */
+        public void update(Buffer buffer, long offset, long byteCount) {
+            long end = offset + byteCount;
+            while (offset < end && !finished) {
+                if (boxRemaining > 0) {
+                    long n = Math.min(boxRemaining, end - offset);
+                    if (moov != null) {
+                        buffer.copyTo(moov, offset, n);
+                    }
+                    offset += n;
+                    boxRemaining -= n;
+                    if (boxRemaining == 0 && moov != null) {
+                        finishMoov();
+                    }
+                    continue;
+                }
+                header[headerFill++] = buffer.getByte(offset++);
+                boolean largeSize = headerFill >= 4 && header[0] == 0 && header[1] == 0 && header[2] == 0 && header[3] == 1;
+                if (headerFill == 8 && !largeSize || headerFill == 16) {
+                    startBox();
+                }
+            }
+        }
+
+        /**
+         * @return The metadata from the moov box, or null if it hasn't been seen (yet) or couldn't be parsed
+         */
+        public MediaMetadata result() {
+            return result;
+        }
+
+        private void startBox() {
+            int fill = headerFill;
+            headerFill = 0;
+            Mp4Faststart.BoxHeader box = Mp4Faststart.BoxHeader.read(ByteBuffer.wrap(header), 0, fill, Long.MAX_VALUE);
+            if (box == null) {
+                finished = true;
+                return;
+            }
+            boxRemaining = box.size - fill;
+            if (box.is("moov")) {
+                if (box.size > Mp4Faststart.MAX_MOVED_BYTES) {
+                    finished = true;
+                    return;
+                }
+                moov = new Buffer();
+                moov.write(header, 0, fill);
+                if (boxRemaining == 0) {
+                    finishMoov();
+                }
+            }
+        }
+
+        private void finishMoov() {
+            result = fromMoov(ByteBuffer.wrap(moov.readByteArray()));
+            moov = null;
+            finished = true;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.neoruaa.xhsdn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Moves the moov box of an MP4 ahead of its media data ("faststart"), so a gallery can start the
+ * motion part of a live photo without reading the whole embedded clip first.
+ * Only the boxes that move are held in memory. Chunk offsets in their stco/co64 tables are rewritten
+ * for the new layout and no box changes size, so the video length recorded in the XMP stays valid.
+ */
+public final class Mp4Faststart {
+    // Live photo clips have moov boxes of a few tens of KB; anything larger is left where it is
+    public static final int MAX_MOVED_BYTES = 4 * 1024 * 1024;
+    // Enough for a box header with a 64-bit size
+    public static final int MAX_HEADER_SIZE = 16;
+
+    private static final long MAX_STCO_OFFSET = 0xFFFFFFFFL;
+
+    private Mp4Faststart() {
+    }
+
+    /**
+     * Works out how to lay out a video file with its moov box in front of the first mdat box.
+     * @return The plan, or null if the file is already faststart or can't be rearranged safely
+     *         (no moov, a compressed or oversized moov, offsets that would overflow stco)
+     */
+    public static Plan plan(FileChannel video) throws IOException {
+        long size = video.size();
+        ByteBuffer headerBuffer = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        long firstMdatOffset = -1;
+        long moovOffset = -1;
+        long moovSize = 0;
+
+        long offset = 0;
+        while (offset < size) {
+            headerBuffer.clear();
+            while (headerBuffer.hasRemaining() && video.read(headerBuffer, offset + headerBuffer.position()) > 0) {
+                // Read until the buffer is full or the file ends
+            }
+            BoxHeader header = BoxHeader.read(headerBuffer, 0, headerBuffer.position(), size - offset);
+            if (header == null) {
+                return null;
+            }
+            if (header.is("mdat") && firstMdatOffset < 0) {
+                firstMdatOffset = offset;
+            } else if (header.is("moov")) {
+                moovOffset = offset;
+                moovSize = header.size;
+                break;
+            }
+            offset += header.size;
+        }
+
+        if (moovOffset < 0 || firstMdatOffset < 0 || moovOffset < firstMdatOffset || moovSize > MAX_MOVED_BYTES) {
+            return null;
+        }
+
+        ByteBuffer moov = ByteBuffer.allocate((int) moovSize);
+        while (moov.hasRemaining()) {
+            if (video.read(moov, moovOffset + moov.position()) <= 0) {
+                return null;
+            }
+        }
+        // Everything between the first mdat and the moov moves back by the size of the moov
+        if (!patchChunkOffsets(moov, 0, moov.capacity(), new Move(firstMdatOffset, moovOffset, moovSize))) {
+            return null;
+        }
+        moov.clear();
+        return new Plan(firstMdatOffset, moovOffset, moovSize, moov);
+    }
+
+    /**
+     * Whether moving boxes around inside a video of this size keeps every chunk offset within a 32-bit
+     * stco entry. Offsets never point past the end of the video, so this can be answered from the size
+     * alone, before any of the boxes have been read.
+     */
+    public static boolean offsetsFitStco(long videoSize) {
+        return videoSize - 1 <= MAX_STCO_OFFSET;
+    }
+
+    /**
+     * Prepares the boxes that follow the first mdat of a streamed video so they can be written in
+     * front of it. The stream is laid out as [head][mdat][tail] and is written as [head][tail][mdat].
+     * @param tail The bytes after the mdat box, rewritten in place
+     * @param mdatOffset Offset of the mdat box within the video
+     * @param mdatSize Size of the mdat box including its header
+     * @throws IOException if the tail isn't a run of boxes with exactly one moov that can be rewritten
+     */
+    public static void prepareTail(ByteBuffer tail, long mdatOffset, long mdatSize) throws IOException {
+        int tailSize = tail.limit();
+        long tailOffset = mdatOffset + mdatSize;
+        Move mdatMove = new Move(mdatOffset, tailOffset, tailSize);
+        Move tailMove = new Move(tailOffset, tailOffset + tailSize, -mdatSize);
+
+        boolean moovSeen = false;
+        int offset = 0;
+        while (offset < tailSize) {
+            BoxHeader header = BoxHeader.read(tail, offset, tailSize, tailSize - offset);
+            if (header == null) {
+                throw new IOException("Malformed box at offset " + (tailOffset + offset) + " of the video");
+            }
+            if (header.is("mdat")) {
+                throw new IOException("Video has more than one mdat box before its moov");
+            }
+            if (header.is("moov")) {
+                if (moovSeen || !patchChunkOffsets(tail, offset, offset + (int) header.size, mdatMove, tailMove)) {
+                    throw new IOException("Unable to rewrite the chunk offsets of the video");
+                }
+                moovSeen = true;
+            }
+            offset += (int) header.size;
+        }
+        if (!moovSeen) {
+            throw new IOException("Video has no moov box after its mdat");
+        }
+    }
+
+    /**
+     * Rewrites every stco/co64 entry inside the box at {@code [start, end)} of {@code buffer}
+     * @return false if the offsets can't be rewritten (compressed moov, stco overflow)
+     */
+    private static boolean patchChunkOffsets(ByteBuffer buffer, int start, int end, Move... moves) throws IOException {
+        BoxHeader box = BoxHeader.read(buffer, start, end, end - start);
+        if (box == null) {
+            throw new IOException("Malformed box at " + start);
+        }
+        int bodyEnd = start + (int) box.size;
+        if (box.is("cmov")) {
+            return false;
+        }
+        if (box.is("stco") || box.is("co64")) {
+            return patchTable(buffer, start + box.headerSize, bodyEnd, box.is("co64"), moves);
+        }
+        if (!box.is("moov") && !box.is("trak") && !box.is("mdia") && !box.is("minf") && !box.is("stbl")) {
+            return true;
+        }
+        int child = start + box.headerSize;
+        while (child < bodyEnd) {
+            BoxHeader header = BoxHeader.read(buffer, child, bodyEnd, bodyEnd - child);
+            if (header == null) {
+                throw new IOException("Malformed box at " + child);
+            }
+            if (!patchChunkOffsets(buffer, child, child + (int) header.size, moves)) {
+                return false;
+            }
+            child += (int) header.size;
+        }
+        return true;
+    }
+
+    private static boolean patchTable(ByteBuffer buffer, int body, int end, boolean wide, Move... moves)
+            throws IOException {
+        // version + flags, then the entry count
+        if (end - body < 8) {
+            throw new IOException("Truncated chunk offset table");
+        }
+        long count = buffer.getInt(body + 4) & 0xFFFFFFFFL;
+        int entrySize = wide ? 8 : 4;
+        if (count * entrySize > end - body - 8) {
+            throw new IOException("Chunk offset table has more entries than fit in its box");
+        }
+        int entry = body + 8;
+        for (long i = 0; i < count; i++, entry += entrySize) {
+            long chunkOffset = wide ? buffer.getLong(entry) : buffer.getInt(entry) & 0xFFFFFFFFL;
+            long moved = chunkOffset;
+            for (Move move : moves) {
+                if (chunkOffset >= move.start && chunkOffset < move.end) {
+                    moved = chunkOffset + move.delta;
+                    break;
+                }
+            }
+            if (wide) {
+                buffer.putLong(entry, moved);
+            } else if (moved < 0 || moved > MAX_STCO_OFFSET) {
+                return false;
+            } else {
+                buffer.putInt(entry, (int) moved);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Original byte range {@code [start, end)} of the video that ends up {@code delta} bytes further on
+     */
+    private static final class Move {
+        final long start;
+        final long end;
+        final long delta;
+
+        Move(long start, long end, long delta) {
+            this.start = start;
+            this.end = end;
+            this.delta = delta;
+        }
+    }
+
+    /**
+     * Size and type of an ISO BMFF box
+     */
+    public static final class BoxHeader {
+        public final String type;
+        public final int headerSize;
+        public final long size;
+
+        private BoxHeader(String type, int headerSize, long size) {
+            this.type = type;
+            this.headerSize = headerSize;
+            this.size = size;
+        }
+
+        public boolean is(String boxType) {
+            return type.equals(boxType);
+        }
+
+        /**
+         * Parses the header at {@code offset} using absolute reads
+         * @param limit End of the readable bytes in {@code buffer}
+         * @param remaining Bytes left in the enclosing box or file, which a size of 0 extends to
+         * @return The header, or null if it's truncated or its size doesn't fit in {@code remaining}
+         */
+        public static BoxHeader read(ByteBuffer buffer, int offset, int limit, long remaining) {
+            if (limit - offset < 8 || remaining < 8) {
+                return null;
+            }
+            long size = buffer.getInt(offset) & 0xFFFFFFFFL;
+            byte[] typeBytes = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                typeBytes[i] = buffer.get(offset + 4 + i);
+            }
+            String type = new String(typeBytes, StandardCharsets.US_ASCII);
+            int headerSize = 8;
+            if (size == 1) {
+                if (limit - offset < 16) {
+                    return null;
+                }
+                size = buffer.getLong(offset + 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = remaining;
+            }
+            if (size < headerSize || size > remaining) {
+                return null;
+            }
+            return new BoxHeader(type, headerSize, size);
+        }
+    }
+
+    /**
+     * Layout of a faststart copy of a video file:
+     * [0, firstMdatOffset), the rewritten moov, [firstMdatOffset, moovOffset), then whatever followed the moov
+     */
+    public static final class Plan {
+        public final long firstMdatOffset;
+        public final long moovOffset;
+        public final long moovSize;
+        public final ByteBuffer moov;
+
+        private Plan(long firstMdatOffset, long moovOffset, long moovSize, ByteBuffer moov) {
+            this.firstMdatOffset = firstMdatOffset;
+            this.moovOffset = moovOffset;
+            this.moovSize = moovSize;
+            this.moov = moov;
+        }
+    }
+}
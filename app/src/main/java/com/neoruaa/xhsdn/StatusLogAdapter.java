@@ -0,0 +1,252 @@
+package com.neoruaa.xhsdn;
+
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Color;
+import android.net.Uri;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.UnderlineSpan;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * 状态日志：固定容量的环形缓冲区，由 RecyclerView 只绘制可见的几行.
+ * Appending costs the same however long the session has run: once the buffer is full the oldest entry
+ * makes room for the new one. A progress line is rewritten in place at its index instead of being
+ * appended again. Main thread only.
+ */
+public class StatusLogAdapter extends RecyclerView.Adapter<StatusLogAdapter.ViewHolder> {
+    private static final String TAG = "StatusLogAdapter";
+    // Enough for a long multi-link batch; older lines drop off the top and out of the export
+    static final int CAPACITY = 500;
+
+    enum Kind {
+        INFO,
+        ERROR,
+        // Rewritten in place wherever it is, until it is evicted or the log is cleared
+        PROGRESS
+    }
+
+    private final Context context;
+    private final Entry[] entries = new Entry[CAPACITY];
+    // Buffer index of the oldest entry
+    private int head;
+    private int size;
+    private long nextId;
+    // Id of the live progress line, or -1 if there is none
+    private long progressId = -1;
+    private RecyclerView recyclerView;
+
+    public StatusLogAdapter(Context context) {
+        this.context = context;
+        setHasStableIds(true);
+    }
+
+    public void add(CharSequence message) {
+        append(new Entry(nextId++, System.currentTimeMillis(), Kind.INFO, message, null));
+    }
+
+    /**
+     * Adds the message in red; tapping the line opens the URL it is about
+     * @param url The URL the error is about, or null if there is none to link
+     */
+    public void addError(String message, String url) {
+        append(new Entry(nextId++, System.currentTimeMillis(), Kind.ERROR, message, url));
+    }
+
+    /**
+     * Shows the progress line: rewrites it where it is if it is still in the log, otherwise adds it.
+     * Lines logged in between don't push it along, so a batch keeps a single progress line.
+     */
+    public void setProgress(CharSequence message) {
+        int position = positionOf(progressId);
+        if (position >= 0) {
+            Entry progress = get(position);
+            progress.message = message;
+            progress.time = System.currentTimeMillis();
+            notifyItemChanged(position);
+            return;
+        }
+        progressId = nextId;
+        append(new Entry(nextId++, System.currentTimeMillis(), Kind.PROGRESS, message, null));
+    }
+
+    public void clear() {
+        int removed = size;
+        for (int i = 0; i < CAPACITY; i++) {
+            entries[i] = null;
+        }
+        head = 0;
+        size = 0;
+        progressId = -1;
+        if (removed > 0) {
+            notifyItemRangeRemoved(0, removed);
+        }
+    }
+
+    /**
+     * The log as plain text, one timestamped line per entry, for sharing or saving
+     */
+    public String export() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            Entry entry = get(i);
+            builder.append(format.format(new Date(entry.time)));
+            builder.append(entry.kind == Kind.ERROR ? " E " : " I ");
+            builder.append(entry.message);
+            if (entry.url != null) {
+                builder.append(" Original URL: ").append(entry.url);
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    private Entry get(int position) {
+        return entries[(head + position) % CAPACITY];
+    }
+
+    /**
+     * Every append takes the next id, so the entries hold consecutive ids from the oldest one up
+     * @return The entry's position, or -1 if it has been evicted or the log cleared
+     */
+    private int positionOf(long id) {
+        if (id < 0 || size == 0) {
+            return -1;
+        }
+        long position = id - get(0).id;
+        return position >= 0 && position < size ? (int) position : -1;
+    }
+
+    private void append(Entry entry) {
+        // Only follow new lines if the user hasn't scrolled up to read older ones
+        boolean atBottom = recyclerView == null || !recyclerView.canScrollVertically(1);
+        if (size == CAPACITY) {
+            entries[head] = entry;
+            head = (head + 1) % CAPACITY;
+            notifyItemRemoved(0);
+            notifyItemInserted(size - 1);
+        } else {
+            entries[(head + size) % CAPACITY] = entry;
+            size++;
+            notifyItemInserted(size - 1);
+        }
+        if (atBottom && recyclerView != null) {
+            recyclerView.scrollToPosition(size - 1);
+        }
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        this.recyclerView = recyclerView;
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        this.recyclerView = null;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return get(position).id;
+    }
+
+    @Override
+    public int getItemCount() {
+        return size;
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        TextView textView = new TextView(context);
+        textView.setLayoutParams(new ViewGroup.LayoutParams(
+            ViewGroup.LayoutParams.MATCH_PARENT,
+            ViewGroup.LayoutParams.WRAP_CONTENT
+        ));
+        int padding = dpToPx(8);
+        textView.setPadding(padding, 0, padding, 0);
+        ViewHolder holder = new ViewHolder(textView);
+        textView.setOnClickListener(holder);
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        Entry entry = get(position);
+        holder.url = entry.url;
+        holder.textView.setClickable(entry.url != null);
+        if (entry.kind != Kind.ERROR) {
+            holder.textView.setText(entry.message);
+            return;
+        }
+        // Red message, then the URL underlined like a link if the error is about one
+        SpannableStringBuilder text = new SpannableStringBuilder(entry.message);
+        text.setSpan(new ForegroundColorSpan(Color.RED), 0, text.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        if (entry.url != null) {
+            text.append(" Original URL: ");
+            int urlStart = text.length();
+            text.append(entry.url);
+            text.setSpan(new UnderlineSpan(), urlStart, text.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        holder.textView.setText(text);
+    }
+
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final TextView textView;
+        String url;
+
+        ViewHolder(TextView itemView) {
+            super(itemView);
+            this.textView = itemView;
+        }
+
+        @Override
+        public void onClick(View v) {
+            if (url == null) {
+                return;
+            }
+            // Open the URL in browser
+            Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse(url));
+            if (intent.resolveActivity(context.getPackageManager()) != null) {
+                context.startActivity(intent);
+            } else {
+                Log.w(TAG, "No app to open " + url);
+            }
+        }
+    }
+
+    private static final class Entry {
+        final long id;
+        long time;
+        final Kind kind;
+        CharSequence message;
+        // Set on errors only
+        final String url;
+
+        Entry(long id, long time, Kind kind, CharSequence message, String url) {
+            this.id = id;
+            this.time = time;
+            this.kind = kind;
+            this.message = message;
+            this.url = url;
+        }
+    }
+
+    private int dpToPx(int dp) {
+        float density = context.getResources().getDisplayMetrics().density;
+        return Math.round(dp * density);
+    }
+}
@@ -0,0 +1,118 @@
+package com.neoruaa.xhsdn;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Free-space admission control shared by all concurrent downloads.
+ * A download reserves its Content-Length before any body bytes are read; it is admitted only if
+ * the volume can hold it on top of every other in-flight reservation, queued while other
+ * transfers hold the space it needs, and rejected if it can never fit.
+ */
+public final class StorageReservations {
+    private static final String TAG = "StorageReservations";
+    // Space always left free so the system and other apps don't run dry because of us
+    private static final long SAFETY_MARGIN_BYTES = 64L * 1024 * 1024;
+    // How long a download waits for in-flight transfers to release their reservations
+    private static final long ADMISSION_TIMEOUT_MS = 60_000L;
+
+    private static final Object LOCK = new Object();
+    private static long reservedBytes = 0;
+
+    private StorageReservations() {
+    }
+
+    /**
+     * Reserves space for a transfer of the given size on the volume holding {@code directory}.
+     * Blocks while the space is held by other in-flight transfers.
+     * @param directory Any directory on the target volume
+     * @param bytes The number of bytes that will be written
+     * @return A reservation that must be released once the transfer is finished
+     * @throws InsufficientSpaceException if the file cannot fit, now or after waiting
+     */
+    public static Reservation reserve(File directory, long bytes) throws InsufficientSpaceException {
+        if (bytes <= 0 || directory == null) {
+            return new Reservation(0);
+        }
+
+        long deadline = System.currentTimeMillis() + ADMISSION_TIMEOUT_MS;
+        synchronized (LOCK) {
+            while (true) {
+                long usable = directory.getUsableSpace();
+                if (usable <= 0) {
+                    // Volume can't be queried (missing directory, FUSE quirk); don't block the download on it
+                    Log.w(TAG, "Unable to query free space for " + directory.getAbsolutePath());
+                    return new Reservation(0);
+                }
+
+                long available = usable - SAFETY_MARGIN_BYTES;
+                if (available < bytes) {
+                    throw new InsufficientSpaceException(bytes, Math.max(available, 0));
+                }
+                if (available - reservedBytes >= bytes) {
+                    reservedBytes += bytes;
+                    Log.d(TAG, "Reserved " + bytes + " bytes, in flight: " + reservedBytes + ", usable: " + usable);
+                    return new Reservation(bytes);
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new InsufficientSpaceException(bytes, Math.max(available - reservedBytes, 0));
+                }
+                Log.d(TAG, "Queueing " + bytes + " byte transfer behind " + reservedBytes + " reserved bytes");
+                try {
+                    LOCK.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InsufficientSpaceException(bytes, Math.max(available - reservedBytes, 0));
+                }
+            }
+        }
+    }
+
+    private static void release(long bytes) {
+        synchronized (LOCK) {
+            reservedBytes = Math.max(0, reservedBytes - bytes);
+            LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * Space held for one in-flight transfer. Releasing is idempotent, so it can be released
+     * early once the file has been preallocated and the filesystem accounts for the space itself.
+     */
+    public static final class Reservation implements AutoCloseable {
+        private long bytes;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public void release() {
+            long held;
+            synchronized (this) {
+                held = bytes;
+                bytes = 0;
+            }
+            if (held > 0) {
+                StorageReservations.release(held);
+            }
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+
+    /**
+     * Thrown when a transfer is rejected because the volume can't hold it
+     */
+    public static class InsufficientSpaceException extends IOException {
+        InsufficientSpaceException(long required, long available) {
+            super("Not enough storage space: " + required + " bytes required, " + available + " bytes available");
+        }
+    }
+}
@@ -0,0 +1,509 @@
+package com.neoruaa.xhsdn;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+
+/**
+ * Loads gallery thumbnails off the main thread.
+ * Decoded thumbnails are kept in a memory cache sized to the device's memory class and written to a
+ * disk cache under cacheDir, so a file is decoded (or a video frame extracted) once, not on every bind.
+ * Each ImageView has at most one request in flight; binding it again or recycling it cancels the old one.
+ * Bitmaps that are neither cached nor on screen go to a {@link BitmapPool} and are decoded into again,
+ * so views must {@link #release} every thumbnail they were given once they stop showing it.
+ * Preview renditions of media that hasn't been downloaded yet are fetched over the network and only kept
+ * in the memory cache; the local original replaces them once it exists.
+ */
+public final class ThumbnailLoader {
+    private static final String TAG = "ThumbnailLoader";
+    private static final String DISK_CACHE_DIR = "thumbnails";
+    private static final long MAX_DISK_CACHE_BYTES = 48L * 1024 * 1024;
+    private static final int DECODE_THREADS = 2;
+    // Previews are small and network bound, so more of them run at once than local decodes
+    private static final int PREVIEW_THREADS = 4;
+    // Preview renditions are a few tens of KB; anything far larger isn't a preview
+    private static final long MAX_PREVIEW_BYTES = 2L * 1024 * 1024;
+    // Frame used for video thumbnails, same as the gallery used before
+    private static final long VIDEO_FRAME_TIME_US = 1000000;
+
+    private static final Paint SCALE_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private static ThumbnailLoader instance;
+
+    private final LruCache<String, Bitmap> memoryCache;
+    private final BitmapPool bitmapPool;
+    // How many views (or deliveries on their way to one) hold each bitmap; guarded by itself
+    private final Map<Bitmap, Integer> displayCounts = new IdentityHashMap<>();
+    // Bitmaps dropped from the memory cache while still on screen; pooled once the last view lets go
+    private final Set<Bitmap> evictedWhileShown = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final File diskCacheDir;
+    private final ExecutorService executor;
+    private final ExecutorService previewExecutor;
+    private final OkHttpClient httpClient = new OkHttpClient();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Main thread only
+    private final Map<ImageView, PendingLoad> pending = new WeakHashMap<>();
+    // Worker threads only, under diskCacheDir's lock; -1 until first measured
+    private long diskCacheBytes = -1;
+
+    /**
+     * Delivers a thumbnail on the main thread
+     */
+    public interface Callback {
+        /**
+         * @param bitmap The thumbnail, or null if the file couldn't be decoded
+         */
+        void onThumbnailLoaded(Bitmap bitmap);
+    }
+
+    public static synchronized ThumbnailLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new ThumbnailLoader(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ThumbnailLoader(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClassMb = activityManager != null ? activityManager.getMemoryClass() : 64;
+        // An eighth of the app's heap, the usual share for an image cache
+        int cacheBytes = memoryClassMb * 1024 * 1024 / 8;
+        // The pool holds what the cache drops, so a scroll back and forth mostly decodes into old bitmaps
+        bitmapPool = new BitmapPool(cacheBytes / 2);
+        memoryCache = new LruCache<String, Bitmap>(cacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                synchronized (displayCounts) {
+                    if (displayCounts.containsKey(oldValue)) {
+                        evictedWhileShown.add(oldValue);
+                        return;
+                    }
+                }
+                bitmapPool.put(oldValue);
+            }
+        };
+        diskCacheDir = new File(context.getCacheDir(), DISK_CACHE_DIR);
+        executor = newBackgroundPool(DECODE_THREADS, "thumbnail-loader");
+        previewExecutor = newBackgroundPool(PREVIEW_THREADS, "preview-loader");
+    }
+
+    private static ExecutorService newBackgroundPool(int threads, String name) {
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads the thumbnail of {@code filePath} for {@code target}, replacing any earlier request for it.
+     * A memory cache hit is delivered before this returns. Must be called on the main thread.
+     * @param maxSize Longest side the thumbnail needs, in pixels
+     */
+    public void load(ImageView target, String filePath, boolean video, int maxSize, Callback callback) {
+        String key = filePath + ":" + maxSize;
+        submit(target, key, executor, () -> loadInBackground(key, filePath, video, maxSize), callback);
+    }
+
+    /**
+     * Drops the cached thumbnails of {@code filePath} from memory, e.g. because the file was just
+     * downloaded again over an older copy. The disk cache is keyed on the file's version and needs no
+     * invalidation. Any thread.
+     */
+    public void invalidate(String filePath) {
+        String prefix = filePath + ":";
+        for (String key : memoryCache.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                memoryCache.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Loads the preview rendition at {@code url} for {@code target}, replacing any earlier request for it.
+     * Previews are cached in memory only. Must be called on the main thread.
+     * @param maxSize Longest side the thumbnail needs, in pixels
+     */
+    public void loadPreview(ImageView target, String url, int maxSize, Callback callback) {
+        String key = "preview:" + url + ":" + maxSize;
+        submit(target, key, previewExecutor, () -> fetchPreview(key, url, maxSize), callback);
+    }
+
+    private void submit(ImageView target, String key, ExecutorService executor, BitmapTask task, Callback callback) {
+        cancel(target);
+        Bitmap cached;
+        synchronized (displayCounts) {
+            // Looked up and claimed in one step so it can't be pooled in between
+            cached = memoryCache.get(key);
+            if (cached != null) {
+                acquire(cached);
+            }
+        }
+        if (cached != null) {
+            callback.onThumbnailLoaded(cached);
+            return;
+        }
+
+        PendingLoad request = new PendingLoad();
+        pending.put(target, request);
+        request.future = executor.submit(() -> {
+            Bitmap bitmap = task.run();
+            mainHandler.post(() -> {
+                // The view may have been rebound or recycled while this was decoding
+                if (pending.get(target) != request) {
+                    release(bitmap);
+                    return;
+                }
+                pending.remove(target);
+                callback.onThumbnailLoaded(bitmap);
+            });
+        });
+    }
+
+    /**
+     * Tells the loader a view no longer shows a bitmap it was given. Must be called on the main thread.
+     */
+    public void release(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (displayCounts) {
+            Integer count = displayCounts.get(bitmap);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                displayCounts.put(bitmap, count - 1);
+                return;
+            }
+            displayCounts.remove(bitmap);
+            if (!evictedWhileShown.remove(bitmap)) {
+                // Still cached; the cache hands it to the pool when it drops it
+                return;
+            }
+        }
+        bitmapPool.put(bitmap);
+    }
+
+    private void acquire(Bitmap bitmap) {
+        synchronized (displayCounts) {
+            Integer count = displayCounts.get(bitmap);
+            displayCounts.put(bitmap, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Drops the request in flight for {@code target}, if any. Must be called on the main thread.
+     */
+    public void cancel(ImageView target) {
+        PendingLoad request = pending.remove(target);
+        if (request != null && request.future != null) {
+            request.future.cancel(true);
+        }
+    }
+
+    /**
+     * @return The thumbnail, already claimed for the delivery (see {@link #release}), or null
+     */
+    private Bitmap loadInBackground(String key, String filePath, boolean video, int maxSize) {
+        // Stat here rather than on every bind: the memory cache trusts the path, the disk cache checks the version
+        File cacheFile = new File(diskCacheDir, hash(diskCacheKey(filePath, maxSize)) + ".thumb");
+        Bitmap bitmap = null;
+        if (cacheFile.isFile()) {
+            bitmap = decodeSampledBitmapFromFile(cacheFile.getAbsolutePath(), maxSize, maxSize);
+            if (bitmap != null) {
+                // Keeps recently used thumbnails at the young end of the disk LRU
+                cacheFile.setLastModified(System.currentTimeMillis());
+            }
+        }
+        if (bitmap == null && !Thread.currentThread().isInterrupted()) {
+            bitmap = video ? extractVideoFrame(filePath, maxSize) : decodeSampledBitmapFromFile(filePath, maxSize, maxSize);
+            if (bitmap != null) {
+                writeToDiskCache(cacheFile, bitmap);
+            }
+        }
+        return cache(key, bitmap);
+    }
+
+    /**
+     * @return The preview, already claimed for the delivery (see {@link #release}), or null
+     */
+    private Bitmap fetchPreview(String key, String url, int maxSize) {
+        Request request = new Request.Builder()
+                .url(url)
+                .addHeader("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/91.0.4472.124 Safari/537.36")
+                .addHeader("Referer", "https://www.xiaohongshu.com/")
+                .build();
+        byte[] bytes;
+        try (Response response = httpClient.newCall(request).execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body.contentLength() > MAX_PREVIEW_BYTES) {
+                Log.w(TAG, "Skipping preview " + url + ": HTTP " + response.code() + ", " + body.contentLength() + " bytes");
+                return null;
+            }
+            // Content-Length is optional, so the cap also holds for chunked bodies: buffer at most one
+            // byte past it and give up if that much arrives
+            BufferedSource source = body.source();
+            if (source.request(MAX_PREVIEW_BYTES + 1)) {
+                Log.w(TAG, "Skipping preview " + url + ": more than " + MAX_PREVIEW_BYTES + " bytes");
+                return null;
+            }
+            bytes = source.readByteArray();
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Failed to fetch preview " + url + ": " + e.getMessage());
+            return null;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            return null;
+        }
+        Bitmap bitmap = decodeSampledBitmap(options -> BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options), maxSize, maxSize);
+        return cache(key, bitmap);
+    }
+
+    private Bitmap cache(String key, Bitmap bitmap) {
+        if (bitmap != null) {
+            // Claimed before it is cached, so an immediate eviction can't pool it under the delivery
+            acquire(bitmap);
+            memoryCache.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decodes a downsampled copy, into a pooled bitmap when one fits. JPEGs have no alpha, so they are
+     * decoded as RGB_565 at half the memory.
+     */
+    private Bitmap decodeSampledBitmapFromFile(String filePath, int reqWidth, int reqHeight) {
+        return decodeSampledBitmap(options -> BitmapFactory.decodeFile(filePath, options), reqWidth, reqHeight);
+    }
+
+    private Bitmap decodeSampledBitmap(BitmapSource source, int reqWidth, int reqHeight) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        source.decode(options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        options.inPreferredConfig = "image/jpeg".equals(options.outMimeType) ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        // Pooled bitmaps have to be mutable, and so does anything that may end up in the pool
+        options.inMutable = true;
+        // The decoder rounds sampled sizes up
+        int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        options.inBitmap = bitmapPool.get(width, height, options.inPreferredConfig);
+
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap;
+        try {
+            bitmap = source.decode(options);
+        } catch (IllegalArgumentException e) {
+            bitmap = null;
+        }
+        if (bitmap == null && options.inBitmap != null) {
+            // The pooled bitmap didn't fit after all; decodeFile reports that with null rather than
+            // throwing. Give it back and decode into a fresh one
+            bitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = source.decode(options);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Largest power of two that keeps both sides at least the requested size; the decoder only
+     * samples by powers of two anyway
+     */
+    private int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
+        final int height = options.outHeight;
+        final int width = options.outWidth;
+        int inSampleSize = 1;
+
+        if (height > reqHeight || width > reqWidth) {
+            final int halfHeight = height / 2;
+            final int halfWidth = width / 2;
+            while (halfHeight / inSampleSize >= reqHeight && halfWidth / inSampleSize >= reqWidth) {
+                inSampleSize *= 2;
+            }
+        }
+
+        return inSampleSize;
+    }
+
+    private Bitmap extractVideoFrame(String filePath, int maxSize) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(filePath);
+            Bitmap frame = retriever.getFrameAtTime(VIDEO_FRAME_TIME_US, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            return frame != null ? scaleDown(frame, maxSize) : null;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to extract video frame: " + e.getMessage());
+            return null;
+        } finally {
+            // The retriever holds a native decoder until released
+            try {
+                retriever.release();
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Failed to release retriever: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Draws a video frame into a pooled (or new) bitmap of the thumbnail size and frees the frame
+     */
+    private Bitmap scaleDown(Bitmap frame, int maxSize) {
+        int longest = Math.max(frame.getWidth(), frame.getHeight());
+        float scale = longest > maxSize ? (float) maxSize / longest : 1f;
+        int width = Math.max(1, Math.round(frame.getWidth() * scale));
+        int height = Math.max(1, Math.round(frame.getHeight() * scale));
+
+        Bitmap thumbnail = bitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+        if (thumbnail == null) {
+            thumbnail = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        } else {
+            thumbnail.eraseColor(0);
+        }
+        Canvas canvas = new Canvas(thumbnail);
+        canvas.drawBitmap(frame, null, new Rect(0, 0, width, height), SCALE_PAINT);
+        frame.recycle();
+        // Video frames are opaque; without this the disk cache would store them as PNG instead of JPEG
+        thumbnail.setHasAlpha(false);
+        return thumbnail;
+    }
+
+    private void writeToDiskCache(File cacheFile, Bitmap bitmap) {
+        synchronized (diskCacheDir) {
+            if (!diskCacheDir.isDirectory() && !diskCacheDir.mkdirs()) {
+                return;
+            }
+            File tempFile = new File(diskCacheDir, cacheFile.getName() + ".tmp");
+            Bitmap.CompressFormat format = bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+            try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+                if (!bitmap.compress(format, 85, outputStream)) {
+                    throw new IOException("Bitmap compression failed");
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write thumbnail cache: " + e.getMessage());
+                tempFile.delete();
+                return;
+            }
+            if (!tempFile.renameTo(cacheFile)) {
+                tempFile.delete();
+                return;
+            }
+
+            if (diskCacheBytes < 0) {
+                diskCacheBytes = 0;
+                File[] files = diskCacheDir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        diskCacheBytes += file.length();
+                    }
+                }
+            } else {
+                diskCacheBytes += cacheFile.length();
+            }
+            if (diskCacheBytes > MAX_DISK_CACHE_BYTES) {
+                trimDiskCache();
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used thumbnails until the cache is back under three quarters of its limit
+     */
+    private void trimDiskCache() {
+        File[] files = diskCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (diskCacheBytes <= MAX_DISK_CACHE_BYTES * 3 / 4) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                diskCacheBytes -= length;
+            }
+        }
+        Log.d(TAG, "Trimmed thumbnail cache to " + diskCacheBytes + " bytes");
+    }
+
+    /**
+     * Identifies a thumbnail on disk: the file, its version (size and modification time) and the
+     * requested size. Stats the file, so worker threads only.
+     */
+    private static String diskCacheKey(String filePath, int maxSize) {
+        File file = new File(filePath);
+        return filePath + ":" + file.length() + ":" + file.lastModified() + ":" + maxSize;
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b & 0xFF));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    private static final class PendingLoad {
+        Future<?> future;
+    }
+
+    private interface BitmapTask {
+        Bitmap run();
+    }
+
+    private interface BitmapSource {
+        Bitmap decode(BitmapFactory.Options options);
+    }
+}
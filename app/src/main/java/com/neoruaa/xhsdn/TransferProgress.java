@@ -0,0 +1,165 @@
+package com.neoruaa.xhsdn;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Session-wide progress across every transfer in flight.
+ * Transfers record their byte counts from their own threads, which only costs a couple of volatile
+ * writes; the main thread samples the totals at a fixed interval and hands one snapshot to the
+ * listener, so the UI does the same amount of work however many files are downloading at once.
+ */
+public final class TransferProgress {
+    // Weight of the newest sample in the smoothed throughput
+    private static final double RATE_SMOOTHING = 0.3;
+
+    public interface Listener {
+        /**
+         * Called on the main thread, at most once per interval and only when something changed
+         */
+        void onProgress(Snapshot snapshot);
+    }
+
+    private final long intervalMs;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ConcurrentHashMap<String, Transfer> active = new ConcurrentHashMap<>();
+    // Bytes of the transfers that completed; they leave the active map so a tick only visits what is running
+    private final AtomicLong finishedBytes = new AtomicLong();
+
+    // Main thread only
+    private boolean running;
+    private long lastSampleTime;
+    private long lastBytesDone;
+    private long lastBytesTotal = -1;
+    private double bytesPerSecond;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+            sample();
+            handler.postDelayed(this, intervalMs);
+        }
+    };
+
+    public TransferProgress(long intervalMs, Listener listener) {
+        this.intervalMs = intervalMs;
+        this.listener = listener;
+    }
+
+    /**
+     * Records how far a transfer has got. Any thread; a retry simply starts reporting from zero again.
+     * @param total Content length, or a negative value if the server didn't send one
+     */
+    public void update(String itemId, long downloaded, long total) {
+        Transfer transfer = active.get(itemId);
+        if (transfer == null) {
+            Transfer created = new Transfer();
+            transfer = active.putIfAbsent(itemId, created);
+            if (transfer == null) {
+                transfer = created;
+            }
+        }
+        transfer.total = total;
+        transfer.downloaded = downloaded;
+    }
+
+    /**
+     * Takes a transfer out of the in-flight set. A completed one keeps counting towards the session,
+     * a failed one is dropped from both the bytes done and the bytes expected.
+     */
+    public void end(String itemId, boolean succeeded) {
+        Transfer transfer = active.remove(itemId);
+        if (transfer != null && succeeded) {
+            finishedBytes.addAndGet(Math.max(transfer.downloaded, transfer.total));
+        }
+    }
+
+    /**
+     * Starts sampling. Main thread only.
+     */
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        lastSampleTime = SystemClock.elapsedRealtime();
+        handler.postDelayed(tick, intervalMs);
+    }
+
+    /**
+     * Stops sampling after delivering one last snapshot. Main thread only.
+     */
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        handler.removeCallbacks(tick);
+        sample();
+    }
+
+    private void sample() {
+        long bytesDone = finishedBytes.get();
+        long bytesTotal = bytesDone;
+        for (Transfer transfer : active.values()) {
+            long downloaded = transfer.downloaded;
+            long total = transfer.total;
+            bytesDone += downloaded;
+            // Without a content length the transfer can't tell how much is left, so it adds nothing to the remainder
+            bytesTotal += total > 0 ? Math.max(total, downloaded) : downloaded;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - lastSampleTime;
+        if (elapsed > 0) {
+            // A retry or a failed transfer can take bytes back; that isn't negative throughput
+            long delta = Math.max(0, bytesDone - lastBytesDone);
+            double rate = delta * 1000.0 / elapsed;
+            bytesPerSecond = bytesPerSecond == 0 ? rate : bytesPerSecond + RATE_SMOOTHING * (rate - bytesPerSecond);
+        }
+        lastSampleTime = now;
+
+        if (bytesDone == lastBytesDone && bytesTotal == lastBytesTotal) {
+            return;
+        }
+        lastBytesDone = bytesDone;
+        lastBytesTotal = bytesTotal;
+
+        long remaining = bytesTotal - bytesDone;
+        long etaMillis = bytesPerSecond > 0 ? (long) (remaining * 1000 / bytesPerSecond) : -1;
+        listener.onProgress(new Snapshot(bytesDone, bytesTotal, (long) bytesPerSecond, etaMillis, active.size()));
+    }
+
+    private static final class Transfer {
+        volatile long downloaded;
+        volatile long total;
+    }
+
+    /**
+     * Totals over the whole session at one sample
+     */
+    public static final class Snapshot {
+        public final long bytesDone;
+        public final long bytesTotal;
+        public final long bytesPerSecond;
+        // -1 until there is a throughput to estimate from
+        public final long etaMillis;
+        public final int activeTransfers;
+
+        Snapshot(long bytesDone, long bytesTotal, long bytesPerSecond, long etaMillis, int activeTransfers) {
+            this.bytesDone = bytesDone;
+            this.bytesTotal = bytesTotal;
+            this.bytesPerSecond = bytesPerSecond;
+            this.etaMillis = etaMillis;
+            this.activeTransfers = activeTransfers;
+        }
+    }
+}
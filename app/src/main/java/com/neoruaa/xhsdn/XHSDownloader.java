@@ -39,6 +39,8 @@ public class XHSDownloader {
     private DownloadCallback downloadCallback;
     // Map to store the relationship between transformed URLs and original URLs for fallback
     private java.util.Map<String, String> urlMapping = new java.util.HashMap<>();
+    // Media the note lists, by transformed URL; reported to the gallery before anything is downloaded
+    private final java.util.Map<String, MediaPair> listedMedia = new java.util.concurrent.ConcurrentHashMap<>();
     
     // Track successful downloads for the overall download result
     private int successfulDownloads = 0;
@@ -52,6 +54,8 @@ public class XHSDownloader {
     private long sessionDownloadEpochSeconds;
     private static final java.util.regex.Pattern NAMING_PLACEHOLDER_PATTERN = java.util.regex.Pattern.compile("\\{([^}]+)\\}");
     private static final long MIN_VALID_EPOCH_MS = 946684800000L; // 2000-01-01
+    // Live photo pairs assembled at once; matches the cap on concurrent plain downloads
+    private static final int MAX_CONCURRENT_LIVE_PHOTOS = 4;
 
     public XHSDownloader(Context context) {
         this(context, null);
@@ -65,14 +69,19 @@ public class XHSDownloader {
         if (callback != null) {
             this.downloadCallback = new DownloadCallback() {
                 @Override
-                public void onFileDownloaded(String filePath) {
+                public void onFileDownloaded(String filePath, String sourceUrl) {
                     successfulDownloads++; // Increment counter when a file is successfully downloaded
-                    callback.onFileDownloaded(filePath);
+                    callback.onFileDownloaded(filePath, sourceUrl);
                 }
 
                 @Override
-                public void onDownloadError(String status, String originalUrl) {
-                    callback.onDownloadError(status, originalUrl);
+                public void onMediaListed(String sourceUrl, String previewUrl, int width, int height) {
+                    callback.onMediaListed(sourceUrl, previewUrl, width, height);
+                }
+
+                @Override
+                public void onDownloadError(DownloadEvent.ErrorCode code, String status, String originalUrl) {
+                    callback.onDownloadError(code, status, originalUrl);
                 }
                 
                 @Override
@@ -81,8 +90,13 @@ public class XHSDownloader {
                 }
 
                 @Override
-                public void onDownloadProgressUpdate(long downloaded, long total) {
-                    callback.onDownloadProgressUpdate(downloaded, total);
+                public void onDownloadProgressUpdate(String itemId, long downloaded, long total) {
+                    callback.onDownloadProgressUpdate(itemId, downloaded, total);
+                }
+
+                @Override
+                public void onTransferEnded(String itemId, boolean succeeded) {
+                    callback.onTransferEnded(itemId, succeeded);
                 }
             };
         } else {
@@ -93,12 +107,18 @@ public class XHSDownloader {
     public boolean downloadFile(String url, String filename) {
         // Use the FileDownloader class to handle the actual download
         FileDownloader downloader = new FileDownloader(this.context, this.downloadCallback);
+        downloader.setSourceUrl(url);
         return downloader.downloadFile(url, filename);
     }
 
     public boolean downloadFile(String url, String filename, String timestamp) {
+        return downloadFile(url, filename, timestamp, this.downloadCallback);
+    }
+
+    private boolean downloadFile(String url, String filename, String timestamp, DownloadCallback callback) {
         // Use the FileDownloader class to handle the actual download with timestamp
-        FileDownloader downloader = new FileDownloader(this.context, this.downloadCallback);
+        FileDownloader downloader = new FileDownloader(this.context, callback);
+        downloader.setSourceUrl(url);
         return downloader.downloadFile(url, filename, timestamp);
     }
     
@@ -169,6 +189,7 @@ public class XHSDownloader {
                         if (!mediaUrls.isEmpty()) {
                             hasContent = true; // We found media to download
                             Log.d(TAG, "Found " + mediaUrls.size() + " media URLs in post: " + postId);
+                            listMedia(mediaUrls);
                             
                             // Check if we should create live photos
                             boolean createLivePhotos = shouldCreateLivePhotos();
@@ -240,10 +261,10 @@ public class XHSDownloader {
                                                     // Look up the original URL in the mapping
                                                     String originalUrl = urlMapping.get(mediaUrl);
                                                     if (originalUrl != null) {
-                                                        downloadCallback.onDownloadError("Failed to download: " + mediaUrl, originalUrl);
+                                                        downloadCallback.onDownloadError(DownloadEvent.ErrorCode.DOWNLOAD_FAILED, "Failed to download: " + mediaUrl, originalUrl);
                                                     } else {
                                                         // If no mapping exists, use the URL as is
-                                                        downloadCallback.onDownloadError("Failed to download: " + mediaUrl, mediaUrl);
+                                                        downloadCallback.onDownloadError(DownloadEvent.ErrorCode.DOWNLOAD_FAILED, "Failed to download: " + mediaUrl, mediaUrl);
                                                     }
                                                 }
                                                 postHasErrors = true;
@@ -257,9 +278,9 @@ public class XHSDownloader {
                                             if (downloadCallback != null) {
                                                 String originalUrl = urlMapping.get(mediaUrl);
                                                 if (originalUrl != null) {
-                                                    downloadCallback.onDownloadError("Exception downloading: " + mediaUrl, originalUrl);
+                                                    downloadCallback.onDownloadError(DownloadEvent.ErrorCode.UNEXPECTED, "Exception downloading: " + mediaUrl, originalUrl);
                                                 } else {
-                                                    downloadCallback.onDownloadError("Exception downloading: " + mediaUrl, mediaUrl);
+                                                    downloadCallback.onDownloadError(DownloadEvent.ErrorCode.UNEXPECTED, "Exception downloading: " + mediaUrl, mediaUrl);
                                                 }
                                             }
                                             postHasErrors = true;
@@ -286,10 +307,10 @@ public class XHSDownloader {
                                                 // Look up the original URL in the mapping
                                                 String originalUrl = urlMapping.get(mediaUrl);
                                                 if (originalUrl != null) {
-                                                    downloadCallback.onDownloadError("Failed to download: " + mediaUrl, originalUrl);
+                                                    downloadCallback.onDownloadError(DownloadEvent.ErrorCode.DOWNLOAD_FAILED, "Failed to download: " + mediaUrl, originalUrl);
                                                 } else {
                                                     // If no mapping exists, use the URL as is
-                                                    downloadCallback.onDownloadError("Failed to download: " + mediaUrl, mediaUrl);
+                                                    downloadCallback.onDownloadError(DownloadEvent.ErrorCode.DOWNLOAD_FAILED, "Failed to download: " + mediaUrl, mediaUrl);
                                                 }
                                             }
                                             postHasErrors = true;
@@ -309,11 +330,7 @@ public class XHSDownloader {
                             Log.e(TAG, "No media URLs found in post: " + url);
                             // Notify the callback about this issue
                             if (downloadCallback != null) {
-                                downloadCallback.onDownloadError("No media URLs found in post: " + postId, url);
-                                // Show web crawl option if JSON parsing failed
-                                if (context instanceof MainActivity) {
-                                    ((MainActivity) context).showWebCrawlOption();
-                                }
+                                downloadCallback.onDownloadError(DownloadEvent.ErrorCode.NO_MEDIA_FOUND, "No media URLs found in post: " + postId, url);
                             }
                             hasErrors = true; // Consider this an error condition
                         }
@@ -321,11 +338,7 @@ public class XHSDownloader {
                         Log.e(TAG, "Failed to fetch post details for: " + url);
                         // Notify the callback about this issue
                         if (downloadCallback != null) {
-                            downloadCallback.onDownloadError("Failed to fetch post details for: " + url, url);
-                            // Show web crawl option if we couldn't fetch post details
-                            if (context instanceof MainActivity) {
-                                ((MainActivity) context).showWebCrawlOption();
-                            }
+                            downloadCallback.onDownloadError(DownloadEvent.ErrorCode.POST_FETCH_FAILED, "Failed to fetch post details for: " + url, url);
                         }
                         hasErrors = true;
                     }
@@ -333,11 +346,7 @@ public class XHSDownloader {
                     Log.e(TAG, "Could not extract post ID from URL: " + url);
                     // Notify the callback about this issue
                     if (downloadCallback != null) {
-                        downloadCallback.onDownloadError("Could not extract post ID from URL: " + url, url);
-                        // Show web crawl option if we couldn't extract post ID
-                        if (context instanceof MainActivity) {
-                            ((MainActivity) context).showWebCrawlOption();
-                        }
+                        downloadCallback.onDownloadError(DownloadEvent.ErrorCode.POST_ID_NOT_FOUND, "Could not extract post ID from URL: " + url, url);
                     }
                     hasErrors = true;
                 }
@@ -346,6 +355,7 @@ public class XHSDownloader {
             // Clear state variables to prevent issues in subsequent downloads
             downloadUrls.clear();
             urlMapping.clear();
+            listedMedia.clear();
             
             // Return true if we successfully downloaded at least one file, even if some had errors
             // For the overall process, return success if successfulDownloads > 0
@@ -364,44 +374,34 @@ public class XHSDownloader {
             // Clear state variables in case of exception as well
             downloadUrls.clear();
             urlMapping.clear();
+            listedMedia.clear();
             return false;
         }
     }
     
+    /**
+     * Reports the listed media among {@code mediaUrls} to the callback, in download order,
+     * so the gallery can show previews while the originals download
+     */
+    private void listMedia(List<String> mediaUrls) {
+        if (downloadCallback == null) {
+            return;
+        }
+        for (String mediaUrl : mediaUrls) {
+            MediaPair pair = listedMedia.get(mediaUrl);
+            if (pair != null) {
+                downloadCallback.onMediaListed(mediaUrl, pair.previewUrl, pair.width, pair.height);
+            }
+        }
+    }
+
     /**
      * Determine the appropriate file extension based on the URL
      * @param url The URL to check
      * @return The appropriate file extension (png, jpg, mp4, etc.)
      */
     private String determineFileExtension(String url) {
-        if (url != null) {
-            // Check for common image extensions in the URL
-            if (url.toLowerCase().contains(".jpg") || url.toLowerCase().contains(".jpeg")) {
-                return "jpg";
-            } else if (url.toLowerCase().contains(".png")) {
-                return "png";
-            } else if (url.toLowerCase().contains(".gif")) {
-                return "gif";
-            } else if (url.toLowerCase().contains(".webp")) {
-                return "webp";
-            } else if (url.toLowerCase().contains(".mp4") || url.contains("video") || 
-                       url.contains("masterUrl") || url.contains("stream")) {
-                // If it's a video URL or appears to be a Live Photo stream URL
-                return "mp4";
-            } else if (url.contains("xhscdn.com")) {
-                // For xhscdn URLs which could be images or videos, default to image unless specified otherwise
-                // However, if we know it's a Live Photo stream URL, it should be mp4
-                if (url.contains("h264") || url.contains("stream")) {
-                    return "mp4";
-                } else {
-                    // Default to image format for xhscdn URLs that don't indicate video
-                    return "jpg";
-                }
-            }
-        }
-        
-        // Default fallback
-        return "jpg";
+        return MediaClassifier.guessFromUrl(url).extension;
     }
     
     public List<String> extractLinks(String input) {
@@ -651,6 +651,7 @@ public class XHSDownloader {
 
         // Clear the URL mapping before processing new URLs
         urlMapping.clear();
+        listedMedia.clear();
 
         // If we have media pairs, process them and add to main mediaUrls
         // But preserve any existing mediaUrls (like videos from note.video section)
@@ -664,6 +665,10 @@ public class XHSDownloader {
                 urlMapping.put(pair.imageUrl, pair.originalImageUrl);
                 Log.d(TAG, "Transformed image URL: " + pair.originalImageUrl + " -> " + pair.imageUrl);
             }
+            if (pair.imageUrl != null) {
+                // A live photo is shown as its still, so only the image half is listed
+                listedMedia.put(pair.imageUrl, pair);
+            }
             if (pair.originalVideoUrl != null) {
                 pair.videoUrl = transformXhsCdnUrl(pair.originalVideoUrl);
                 // Store mapping for original to transformed URL
@@ -845,12 +850,18 @@ public class XHSDownloader {
                     
                     // Add to media pairs - either paired or as single image
                     if (imageUrl != null) {
+                        MediaPair pair;
                         if (livePhotoVideoUrl != null) {
                             Log.d(TAG, "Matched live photo: image=" + imageUrl + ", video=" + livePhotoVideoUrl);
-                            mediaPairs.add(new MediaPair(imageUrl, livePhotoVideoUrl, true)); // paired live photo with original URLs
+                            pair = new MediaPair(imageUrl, livePhotoVideoUrl, true); // paired live photo with original URLs
                         } else {
-                            mediaPairs.add(new MediaPair(imageUrl, null, false)); // single image with original URL
+                            pair = new MediaPair(imageUrl, null, false); // single image with original URL
                         }
+                        // The note lists every image's pixel size; missing values stay 0 (unknown)
+                        pair.width = image.optInt("width", 0);
+                        pair.height = image.optInt("height", 0);
+                        pair.previewUrl = extractPreviewUrl(image);
+                        mediaPairs.add(pair);
                     }
                 }
             } else {
@@ -882,6 +893,29 @@ public class XHSDownloader {
         return mediaUrls;
     }
     
+    /**
+     * Finds the small preview rendition of an imageList entry: urlPre, or the WB_PRV entry of infoList
+     * @return The preview URL, or null if the entry has none
+     */
+    private String extractPreviewUrl(JSONObject image) {
+        String previewUrl = image.optString("urlPre", "");
+        JSONArray infoList = image.optJSONArray("infoList");
+        if (previewUrl.isEmpty() && infoList != null) {
+            for (int k = 0; k < infoList.length(); k++) {
+                JSONObject info = infoList.optJSONObject(k);
+                if (info != null && "WB_PRV".equals(info.optString("imageScene"))) {
+                    previewUrl = info.optString("url", "");
+                    break;
+                }
+            }
+        }
+        if (previewUrl.isEmpty()) {
+            return null;
+        }
+        // Some renditions are listed over plain HTTP, which newer Android versions refuse by default
+        return previewUrl.startsWith("http://") ? "https://" + previewUrl.substring("http://".length()) : previewUrl;
+    }
+
     /**
      * Extracts the description from a note object
      * @param note The note JSON object to extract description from
@@ -971,6 +1005,10 @@ public class XHSDownloader {
         String imageUrl;
         String videoUrl;
         boolean isLivePhoto;
+        int width;
+        int height;
+        // Small rendition shown in the gallery until the original is downloaded
+        String previewUrl;
 
         MediaPair(String originalImageUrl, String originalVideoUrl, boolean isLivePhoto) {
             this.originalImageUrl = originalImageUrl;
@@ -1003,6 +1041,94 @@ public class XHSDownloader {
         }
     }
 
+    /**
+     * Holds back one live photo pair's reports so that pairs finishing out of order are still
+     * reported in order. Progress updates only feed the session totals and pass straight through.
+     */
+    private static class OrderedCallback implements DownloadCallback {
+        private final DownloadCallback target;
+        private final List<Runnable> pending = new ArrayList<>();
+
+        OrderedCallback(DownloadCallback target) {
+            this.target = target;
+        }
+
+        @Override
+        public synchronized void onFileDownloaded(String filePath, String sourceUrl) {
+            pending.add(() -> target.onFileDownloaded(filePath, sourceUrl));
+        }
+
+        @Override
+        public void onMediaListed(String sourceUrl, String previewUrl, int width, int height) {
+            target.onMediaListed(sourceUrl, previewUrl, width, height);
+        }
+
+        @Override
+        public synchronized void onDownloadError(DownloadEvent.ErrorCode code, String status, String originalUrl) {
+            pending.add(() -> target.onDownloadError(code, status, originalUrl));
+        }
+
+        @Override
+        public synchronized void onDownloadProgress(String status) {
+            pending.add(() -> target.onDownloadProgress(status));
+        }
+
+        @Override
+        public void onDownloadProgressUpdate(String itemId, long downloaded, long total) {
+            target.onDownloadProgressUpdate(itemId, downloaded, total);
+        }
+
+        @Override
+        public void onTransferEnded(String itemId, boolean succeeded) {
+            target.onTransferEnded(itemId, succeeded);
+        }
+
+        synchronized void replay() {
+            for (Runnable event : pending) {
+                event.run();
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * Passes on only the byte progress of the transfers behind a live photo. Their files are
+     * intermediate, so the pair reports what it saved itself once the live photo is assembled.
+     */
+    private static class ProgressOnlyCallback implements DownloadCallback {
+        private final DownloadCallback target;
+
+        ProgressOnlyCallback(DownloadCallback target) {
+            this.target = target;
+        }
+
+        @Override
+        public void onMediaListed(String sourceUrl, String previewUrl, int width, int height) {
+        }
+
+        @Override
+        public void onFileDownloaded(String filePath, String sourceUrl) {
+        }
+
+        @Override
+        public void onDownloadProgress(String status) {
+        }
+
+        @Override
+        public void onDownloadProgressUpdate(String itemId, long downloaded, long total) {
+            target.onDownloadProgressUpdate(itemId, downloaded, total);
+        }
+
+        @Override
+        public void onTransferEnded(String itemId, boolean succeeded) {
+            target.onTransferEnded(itemId, succeeded);
+        }
+
+        @Override
+        public void onDownloadError(DownloadEvent.ErrorCode code, String status, String originalUrl) {
+        }
+    }
+
     private static class NoteMetadata {
         final String userName;
         final String userId;
@@ -1373,192 +1499,48 @@ public class XHSDownloader {
     private boolean createLivePhotos(String postId, List<String> mediaUrls, String timestamp) {
         boolean hasErrors = false;
 
-        // Process media URLs in pairs: [image, video, image, video, ...] for live photos
-        // Regular images/videos that are not part of live photos are handled separately
-        int livePhotoIndex = 0; // Track the live photo number separately to ensure correct pairing
-
-        // Process only confirmed live photo pairs that were identified during parsing
-        for (LivePhotoPair livePhotoPair : this.livePhotoPairs) {
-            livePhotoIndex++; // Increment the live photo index for this pair
-
+        // Process only confirmed live photo pairs that were identified during parsing.
+        // Pairs are assembled concurrently; each pair reports into its own buffer, and the buffers are
+        // replayed in pair order so callbacks and file numbering stay the same as a serial run.
+        List<LivePhotoPair> pairs = new ArrayList<>(this.livePhotoPairs);
+        if (!pairs.isEmpty()) {
+            int poolSize = Math.min(pairs.size(), MAX_CONCURRENT_LIVE_PHOTOS);
+            ExecutorService pairExecutor = Executors.newFixedThreadPool(poolSize);
+            // Second half of each pair's parallel fetch; these tasks never wait on anything, so no deadlock
+            ExecutorService fetchExecutor = Executors.newFixedThreadPool(poolSize);
+            ExecutorService muxExecutor = Executors.newSingleThreadExecutor();
             try {
-                String imageUrl = livePhotoPair.imageUrl;
-                String videoUrl = livePhotoPair.videoUrl;
-
-                Log.d(TAG, "Creating live photo " + livePhotoIndex + " for post: " + postId);
-                Log.d(TAG, "Image URL: " + imageUrl);
-                Log.d(TAG, "Video URL: " + videoUrl);
-
-                // Create a temporary downloader that downloads to the app's internal storage
-                FileDownloader tempDownloader = new FileDownloader(context, null); // No callback to avoid premature notification
-
-                // Download the image to a temporary location (app's internal storage)
-                String baseName = buildFileBaseName(postId, livePhotoIndex);
-                String imageFileName = baseName + "_img." + determineFileExtension(imageUrl);
-                boolean imageDownloaded = tempDownloader.downloadFileToInternalStorage(imageUrl, imageFileName, timestamp);
-                if (!imageDownloaded) {
-                    Log.e(TAG, "Failed to download image for live photo: " + imageUrl);
-                    hasErrors = true;
-                    continue; // Skip to next live photo pair
-                }
-
-                // Download the video to a temporary location (app's internal storage)
-                String videoFileName = baseName + "_vid." + determineFileExtension(videoUrl);
-                boolean videoDownloaded = tempDownloader.downloadFileToInternalStorage(videoUrl, videoFileName, timestamp);
-                if (!videoDownloaded) {
-                    Log.e(TAG, "Failed to download video for live photo: " + videoUrl);
-                    hasErrors = true;
-                    // Clean up the already downloaded image file
-                    File alreadyDownloadedImage = new File(context.getExternalFilesDir(null), "xhs_" + timestamp + "_" + imageFileName);
-                    if (alreadyDownloadedImage.exists()) {
-                        alreadyDownloadedImage.delete();
-                    }
-                    continue; // Skip to next live photo pair
+                List<OrderedCallback> pairCallbacks = new ArrayList<>();
+                List<Future<Boolean>> futures = new ArrayList<>();
+                for (int i = 0; i < pairs.size(); i++) {
+                    final int livePhotoIndex = i + 1;
+                    final LivePhotoPair livePhotoPair = pairs.get(i);
+                    final OrderedCallback pairCallback = downloadCallback != null ? new OrderedCallback(downloadCallback) : null;
+                    pairCallbacks.add(pairCallback);
+                    futures.add(pairExecutor.submit(() -> assembleLivePhoto(postId, livePhotoPair, livePhotoIndex,
+                            timestamp, pairCallback, fetchExecutor, muxExecutor)));
                 }
 
-                // The files are downloaded to internal storage with "xhs_" prefix
-                File actualTempImageFile = new File(context.getExternalFilesDir(null), "xhs_" + timestamp + "_" + imageFileName);
-                File actualTempVideoFile = new File(context.getExternalFilesDir(null), "xhs_" + timestamp + "_" + videoFileName);
-
-                Log.d(TAG, "Image file downloaded to: " + actualTempImageFile.getAbsolutePath());
-                Log.d(TAG, "Video file downloaded to: " + actualTempVideoFile.getAbsolutePath());
-
-                if (!actualTempImageFile.exists() || !actualTempVideoFile.exists()) {
-                    Log.e(TAG, "Downloaded temporary files do not exist. Image: " + actualTempImageFile.exists() + ", Video: " + actualTempVideoFile.exists());
-                    hasErrors = true;
-                    continue; // Skip to next live photo pair
-                }
-
-                // Always use MediaStore directory with "xhs" subfolder for consistent location
-                File destinationDir;
-                File publicPicturesDir = android.os.Environment.getExternalStoragePublicDirectory(android.os.Environment.DIRECTORY_PICTURES);
-                if (publicPicturesDir != null) {
-                    destinationDir = new File(publicPicturesDir, "xhs");
-                } else {
-                    destinationDir = context.getExternalFilesDir(android.os.Environment.DIRECTORY_PICTURES);
-                }
-
-                if (!destinationDir.exists()) {
-                    destinationDir.mkdirs();
-                }
-
-                // Create the live photo in the final destination
-                String livePhotoFileName = baseName + "_live.jpg";
-                File livePhotoFile = new File(destinationDir, "xhs_" + livePhotoFileName);
-
-                Log.d(TAG, "Creating live photo with image: " + actualTempImageFile.getAbsolutePath() +
-                       " and video: " + actualTempVideoFile.getAbsolutePath() +
-                       " -> output: " + livePhotoFile.getAbsolutePath());
-
-                boolean livePhotoCreated = LivePhotoCreator.createLivePhoto(actualTempImageFile, actualTempVideoFile, livePhotoFile);
-
-                if (livePhotoCreated) {
-                    // Additional check: verify if the created live photo file can be opened by checking if it was created properly
-                    if (livePhotoFile.exists() && livePhotoFile.length() > 0) {
-                        // Notify the callback that the live photo has been downloaded
-                        if (downloadCallback != null) {
-                            downloadCallback.onFileDownloaded(livePhotoFile.getAbsolutePath());
-                        }
-                        Log.d(TAG, "Successfully created live photo: " + livePhotoFile.getAbsolutePath());
-
-                        // Clean up temporary files
-                        if (actualTempImageFile.exists()) {
-                            actualTempImageFile.delete();
-                        }
-                        if (actualTempVideoFile.exists()) {
-                            actualTempVideoFile.delete();
-                        }
-                    } else {
-                        // Live photo file is invalid, treat as failure
-                        Log.e(TAG, "Live photo file was created but is invalid (zero size or doesn't exist)");
-                        livePhotoCreated = false;
-
-                        // Delete the invalid live photo file to prevent corrupted files from remaining
-                        if (livePhotoFile.exists()) {
-                            boolean deleted = livePhotoFile.delete();
-                            Log.d(TAG, "Deleted invalid live photo file: " + livePhotoFile.getAbsolutePath() +
-                                   ", deletion result: " + deleted);
-                        }
-                    }
-                } else {
-                    // LivePhotoCreator returned false, meaning creation failed
-                    Log.e(TAG, "LivePhotoCreator failed to create live photo");
-
-                    // Delete the failed live photo file if it exists to prevent corrupted files from remaining
-                    if (livePhotoFile.exists()) {
-                        boolean deleted = livePhotoFile.delete();
-                        Log.d(TAG, "Deleted failed live photo file: " + livePhotoFile.getAbsolutePath() +
-                               ", deletion result: " + deleted);
-                    }
-                }
-
-                if (!livePhotoCreated) {
-                    Log.e(TAG, "Failed to create live photo from image: " + actualTempImageFile.getAbsolutePath() +
-                           " and video: " + actualTempVideoFile.getAbsolutePath() +
-                           " -> output: " + livePhotoFile.getAbsolutePath() +
-                           ". Falling back to separate files.");
-                    hasErrors = true;
-
-                    // Notify the callback about live photo creation failure with i18n message
-                    if (downloadCallback != null) {
-                        String fallbackMessage = "Live photo creation failed for post " + postId + ", index " + livePhotoIndex +
-                            ". Falling back to downloading separate image and video files.";
-                        downloadCallback.onDownloadError(fallbackMessage,
-                            "Live photo creation for " + postId + " (item " + livePhotoIndex + ")");
-                    }
-
-                    // Only download separately if the downloadFile calls were successful
-                    boolean imageDownloadedFallback = downloadFile(imageUrl, imageFileName, timestamp);
-                    boolean videoDownloadedFallback = downloadFile(videoUrl, videoFileName, timestamp);
-
-                    Log.d(TAG, "Fallback download - Image: " + (imageDownloadedFallback ? "Success" : "Failed") +
-                           ", Video: " + (videoDownloadedFallback ? "Success" : "Failed"));
-
-                    // Notify the callback if the separate downloads were successful
-                    // Only notify once per live photo pair that couldn't be merged
-                    boolean anySeparateFilesDownloaded = imageDownloadedFallback || videoDownloadedFallback;
-                    if (downloadCallback != null && anySeparateFilesDownloaded) {
-                        if (imageDownloadedFallback) {
-                            File separateImageFile = new File(
-                                android.os.Environment.getExternalStoragePublicDirectory(android.os.Environment.DIRECTORY_PICTURES),
-                                "xhs_" + imageFileName
-                            );
-                            if (separateImageFile.exists()) {
-                                downloadCallback.onFileDownloaded(separateImageFile.getAbsolutePath());
-                            }
-                        }
-                        if (videoDownloadedFallback) {
-                            File separateVideoFile = new File(
-                                android.os.Environment.getExternalStoragePublicDirectory(android.os.Environment.DIRECTORY_PICTURES),
-                                "xhs_" + videoFileName
-                            );
-                            if (separateVideoFile.exists()) {
-                                downloadCallback.onFileDownloaded(separateVideoFile.getAbsolutePath());
-                            }
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        if (futures.get(i).get()) {
+                            hasErrors = true;
                         }
-                    } else if (downloadCallback != null && !anySeparateFilesDownloaded) {
-                        // If neither separate file downloaded successfully, notify about the failure
-                        downloadCallback.onDownloadError(
-                            "Both image and video failed to download separately after live photo creation failure",
-                            "Post " + postId + ", item " + livePhotoIndex
-                        );
-                    }
-
-                    // Clean up temporary files
-                    if (actualTempImageFile.exists()) {
-                        actualTempImageFile.delete();
+                    } catch (Exception e) {
+                        Log.e(TAG, "Exception during concurrent live photo creation: " + e.getMessage());
+                        hasErrors = true;
                     }
-                    if (actualTempVideoFile.exists()) {
-                        actualTempVideoFile.delete();
+                    if (pairCallbacks.get(i) != null) {
+                        pairCallbacks.get(i).replay();
                     }
                 }
-
-            } catch (Exception e) {
-                Log.e(TAG, "Error creating live photo: " + e.getMessage());
-                e.printStackTrace();
-                hasErrors = true;
+            } finally {
+                pairExecutor.shutdown();
+                fetchExecutor.shutdown();
+                muxExecutor.shutdown();
             }
         }
+        int livePhotoIndex = pairs.size();
 
         // Now handle the remaining media that are not part of live photo pairs
         // These include standalone images and standalone videos (like post videos)
@@ -1591,17 +1573,209 @@ public class XHSDownloader {
 
         return hasErrors;
     }
+
+    /**
+     * Downloads and muxes one live photo pair. Reports go to {@code callback}, which buffers them
+     * until the caller replays them in pair order.
+     * @return true if there were errors, false otherwise
+     */
+    private boolean assembleLivePhoto(String postId, LivePhotoPair livePhotoPair, int livePhotoIndex, String timestamp,
+                                      DownloadCallback callback, ExecutorService fetchExecutor,
+                                      ExecutorService muxExecutor) {
+        try {
+            String imageUrl = livePhotoPair.imageUrl;
+            String videoUrl = livePhotoPair.videoUrl;
+
+            Log.d(TAG, "Creating live photo " + livePhotoIndex + " for post: " + postId);
+            Log.d(TAG, "Image URL: " + imageUrl);
+            Log.d(TAG, "Video URL: " + videoUrl);
+
+            // Create a temporary downloader that downloads to the app's internal storage
+            // Only byte progress gets through, to avoid premature notification
+            DownloadCallback progressCallback = callback != null ? new ProgressOnlyCallback(callback) : null;
+            FileDownloader tempDownloader = new FileDownloader(context, progressCallback);
+
+            String baseName = buildFileBaseName(postId, livePhotoIndex);
+
+            // The live photo is written straight into its gallery entry (Pictures/xhs)
+            String livePhotoFileName = "xhs_" + baseName + "_live.jpg";
+
+            // The still has to be a JPEG to carry the XMP, so ask the CDN for one up front
+            String stillUrl = toJpegRenditionUrl(imageUrl);
+            String imageFileName = baseName + "_img." + determineFileExtension(imageUrl);
+            String videoFileName = baseName + "_vid." + determineFileExtension(videoUrl);
+
+            // Stream both bodies straight into the live photo; temporary files are only needed if that fails
+            File streamedLivePhoto;
+            try {
+                streamedLivePhoto = tempDownloader.downloadLivePhoto(stillUrl, videoUrl, livePhotoFileName, imageFileName);
+            } catch (FileDownloader.StillNotJpegException e) {
+                // No JPEG rendition, so the pair can't be muxed however it is downloaded: keep the still
+                // that was already fetched and get the video once as a file of its own
+                return saveUnmuxablePair(e, imageUrl, stillUrl, imageFileName, videoUrl, videoFileName, timestamp, callback);
+            }
+            if (streamedLivePhoto != null) {
+                if (callback != null) {
+                    callback.onFileDownloaded(streamedLivePhoto.getAbsolutePath(), imageUrl);
+                }
+                Log.d(TAG, "Successfully streamed live photo: " + streamedLivePhoto.getAbsolutePath());
+                return false;
+            }
+            Log.w(TAG, "Streaming live photo failed, falling back to temporary files");
+
+            // Download the image and the video to a temporary location (app's internal storage) at the same time
+            // The files are downloaded to internal storage with "xhs_" prefix
+            File actualTempImageFile = new File(context.getExternalFilesDir(null), "xhs_" + timestamp + "_" + imageFileName);
+            File actualTempVideoFile = new File(context.getExternalFilesDir(null), "xhs_" + timestamp + "_" + videoFileName);
+            try {
+                // The video gets its own downloader so it can be cancelled without touching the still
+                FileDownloader videoDownloader = new FileDownloader(context, progressCallback);
+                Future<Boolean> videoDownload = fetchExecutor.submit(
+                        () -> videoDownloader.downloadFileToInternalStorage(videoUrl, videoFileName, timestamp));
+                boolean imageDownloaded = tempDownloader.downloadFileToInternalStorage(stillUrl, imageFileName, timestamp);
+                boolean stillIsJpeg = imageDownloaded
+                        && MediaClassifier.sniff(actualTempImageFile) == MediaClassifier.MediaType.JPEG;
+                if (imageDownloaded && !stillIsJpeg) {
+                    // No JPEG rendition: the pair can't be muxed, so stop paying for the video
+                    Log.w(TAG, "Live photo still is not a JPEG, skipping the video: " + stillUrl);
+                    videoDownloader.cancel();
+                }
+                boolean videoDownloaded = videoDownload.get();
+                // A missing video only matters if there is a still to mux it with
+                if (!imageDownloaded || (stillIsJpeg && !videoDownloaded)) {
+                    if (!imageDownloaded) {
+                        Log.e(TAG, "Failed to download image for live photo: " + imageUrl);
+                    }
+                    if (!videoDownloaded) {
+                        Log.e(TAG, "Failed to download video for live photo: " + videoUrl);
+                    }
+                    return true;
+                }
+
+                Log.d(TAG, "Image file downloaded to: " + actualTempImageFile.getAbsolutePath());
+                Log.d(TAG, "Video file downloaded to: " + actualTempVideoFile.getAbsolutePath());
+
+                if (!actualTempImageFile.exists() || (stillIsJpeg && !actualTempVideoFile.exists())) {
+                    Log.e(TAG, "Downloaded temporary files do not exist. Image: " + actualTempImageFile.exists() + ", Video: " + actualTempVideoFile.exists());
+                    return true;
+                }
+
+                File livePhotoFile = null;
+                if (stillIsJpeg) {
+                    Log.d(TAG, "Creating live photo with image: " + actualTempImageFile.getAbsolutePath() +
+                           " and video: " + actualTempVideoFile.getAbsolutePath() +
+                           " -> output: " + livePhotoFileName);
+
+                    // Muxing runs on its own lane so it doesn't hold up a network thread.
+                    // A failed mux never publishes the gallery entry, so there is nothing to clean up here
+                    livePhotoFile = muxExecutor.submit(() -> tempDownloader.saveToGallery(livePhotoFileName,
+                            MediaClassifier.MediaType.JPEG,
+                            MediaMetadata.probeImage(actualTempImageFile, MediaClassifier.MediaType.JPEG),
+                            outputStream -> LivePhotoCreator.createLivePhoto(actualTempImageFile, actualTempVideoFile, outputStream))).get();
+                }
+
+                if (livePhotoFile != null) {
+                    // Notify the callback that the live photo has been downloaded
+                    if (callback != null) {
+                        callback.onFileDownloaded(livePhotoFile.getAbsolutePath(), imageUrl);
+                    }
+                    Log.d(TAG, "Successfully created live photo: " + livePhotoFile.getAbsolutePath());
+                    return false;
+                }
+
+                Log.e(TAG, "Failed to create live photo from image: " + actualTempImageFile.getAbsolutePath() +
+                       " and video: " + actualTempVideoFile.getAbsolutePath() +
+                       " -> output: " + livePhotoFileName +
+                       ". Falling back to separate files.");
+
+                // Notify the callback about live photo creation failure with i18n message
+                if (callback != null) {
+                    String fallbackMessage = "Live photo creation failed for post " + postId + ", index " + livePhotoIndex +
+                        ". Falling back to downloading separate image and video files.";
+                    callback.onDownloadError(DownloadEvent.ErrorCode.LIVE_PHOTO_FALLBACK, fallbackMessage,
+                        "Live photo creation for " + postId + " (item " + livePhotoIndex + ")");
+                }
+
+                // Both halves are already on disk, so save them as regular media instead of downloading them again.
+                // Only a video that was cancelled for an unusable still has to come from the network
+                FileDownloader fallbackDownloader = new FileDownloader(context, callback);
+                fallbackDownloader.setSourceUrl(imageUrl);
+                boolean imageSavedFallback = fallbackDownloader.promoteLocalFile(actualTempImageFile, imageFileName);
+                // The video gets a tile of its own
+                fallbackDownloader.setSourceUrl(null);
+                boolean videoSavedFallback = actualTempVideoFile.exists()
+                        ? fallbackDownloader.promoteLocalFile(actualTempVideoFile, videoFileName)
+                        : downloadFile(videoUrl, videoFileName, timestamp, callback);
+
+                Log.d(TAG, "Fallback save - Image: " + (imageSavedFallback ? "Success" : "Failed") +
+                       ", Video: " + (videoSavedFallback ? "Success" : "Failed"));
+
+                if (callback != null && !imageSavedFallback && !videoSavedFallback) {
+                    // If neither separate file was saved, notify about the failure
+                    callback.onDownloadError(DownloadEvent.ErrorCode.LIVE_PHOTO_FAILED,
+                        "Both image and video failed to download separately after live photo creation failure",
+                        "Post " + postId + ", item " + livePhotoIndex
+                    );
+                }
+                return true;
+            } finally {
+                // Moved files are already gone; whatever is left is a copy or a partial download
+                deleteTempFile(actualTempImageFile);
+                deleteTempFile(actualTempVideoFile);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error creating live photo: " + e.getMessage());
+            e.printStackTrace();
+            return true;
+        }
+    }
     
+    /**
+     * Saves a live photo pair whose still isn't a JPEG as two separate files. The still has already
+     * been saved while it was being sniffed; it is only fetched again if that save failed.
+     * @return true if there were errors, false otherwise
+     */
+    private boolean saveUnmuxablePair(FileDownloader.StillNotJpegException stillResult, String imageUrl,
+                                      String stillUrl, String imageFileName, String videoUrl,
+                                      String videoFileName, String timestamp, DownloadCallback callback) {
+        Log.w(TAG, "Live photo still is " + stillResult.stillType + ", saving image and video separately: " + imageUrl);
+        boolean imageSaved;
+        if (stillResult.savedStill != null) {
+            if (callback != null) {
+                callback.onFileDownloaded(stillResult.savedStill.getAbsolutePath(), imageUrl);
+            }
+            imageSaved = true;
+        } else {
+            FileDownloader imageDownloader = new FileDownloader(context, callback);
+            imageDownloader.setSourceUrl(imageUrl);
+            imageSaved = imageDownloader.downloadFile(stillUrl, imageFileName, timestamp);
+        }
+        // The video gets a tile of its own
+        FileDownloader videoDownloader = new FileDownloader(context, callback);
+        boolean videoSaved = videoDownloader.downloadFile(videoUrl, videoFileName, timestamp);
+
+        if (!imageSaved) {
+            Log.e(TAG, "Failed to save live photo still: " + imageUrl);
+        }
+        if (!videoSaved) {
+            Log.e(TAG, "Failed to download live photo video: " + videoUrl);
+        }
+        return !imageSaved || !videoSaved;
+    }
+
+    private void deleteTempFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Failed to delete temporary file: " + file.getAbsolutePath());
+        }
+    }
+
     /**
      * Checks if a URL is a video URL
      * @param url The URL to check
      * @return true if it's a video URL, false otherwise
      */
     private boolean isVideoUrl(String url) {
-        return url != null &&
-               (url.contains(".mp4") || url.contains(".mov") || url.contains(".avi") ||
-                url.contains(".webm") || url.contains("video") || url.contains("masterUrl") ||
-                url.contains("stream") || url.contains("sns-video") || url.contains("/spectrum/"));
+        return MediaClassifier.guessFromUrl(url).isVideo();
     }
 
     /**
@@ -1683,6 +1857,22 @@ public class XHSDownloader {
         return originalUrl;
     }
 
+    /**
+     * Asks the image endpoint for a JPEG rendition of a live photo still.
+     * ci.xiaohongshu.com serves the original upload (often HEIC/WebP) unless a format is requested,
+     * and the motion photo XMP can only be embedded in a JPEG.
+     * @param imageUrl The still URL, usually from {@link #transformXhsCdnUrl}
+     * @return The URL of the JPEG rendition, or the original URL for other hosts
+     */
+    private String toJpegRenditionUrl(String imageUrl) {
+        if (imageUrl == null || !imageUrl.startsWith("https://ci.xiaohongshu.com/")) {
+            return imageUrl;
+        }
+        int queryIndex = imageUrl.indexOf('?');
+        String baseUrl = queryIndex >= 0 ? imageUrl.substring(0, queryIndex) : imageUrl;
+        return baseUrl + "?imageView2/format/jpg";
+    }
+
     /**
      * Gets the media count from a XHS URL
      * @param inputUrl The URL to get media count for
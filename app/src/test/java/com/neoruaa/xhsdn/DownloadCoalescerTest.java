@@ -0,0 +1,70 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+public class DownloadCoalescerTest {
+    private static final String TOKEN = "1040g2sg31abcdefghij05o5lmn7g8b0k0g4oopq";
+
+    @Test
+    public void dropsSigningPrefixesOnXhsHosts() {
+        String first = "https://sns-webpic-qc.xhscdn.com/202404121854/0123456789abcdef0123456789abcdef/" + TOKEN;
+        String second = "https://sns-webpic-qc.xhscdn.com/202404131020/fedcba9876543210fedcba9876543210/" + TOKEN;
+        assertEquals(DownloadCoalescer.normalizeKey(first), DownloadCoalescer.normalizeKey(second));
+        assertEquals("sns-webpic-qc.xhscdn.com/" + TOKEN, DownloadCoalescer.normalizeKey(first));
+    }
+
+    @Test
+    public void keepsTheHost() {
+        String first = "https://sns-img-qc.xhscdn.com/" + TOKEN;
+        String second = "https://sns-img-hw.xhscdn.com/" + TOKEN;
+        assertNotEquals(DownloadCoalescer.normalizeKey(first), DownloadCoalescer.normalizeKey(second));
+    }
+
+    @Test
+    public void hostIsCaseInsensitive() {
+        assertEquals(DownloadCoalescer.normalizeKey("https://sns-img-qc.xhscdn.com/" + TOKEN),
+                DownloadCoalescer.normalizeKey("https://SNS-IMG-QC.XHSCDN.COM/" + TOKEN));
+    }
+
+    @Test
+    public void stripsStyleSuffix() {
+        assertEquals(DownloadCoalescer.normalizeKey("https://sns-img-qc.xhscdn.com/" + TOKEN),
+                DownloadCoalescer.normalizeKey("https://sns-img-qc.xhscdn.com/" + TOKEN + "!nd_dft_wlteh_webp_3"));
+    }
+
+    @Test
+    public void dropsUnrelatedQuery() {
+        assertEquals(DownloadCoalescer.normalizeKey("https://sns-video-bd.xhscdn.com/stream/110/258/01e5.mp4"),
+                DownloadCoalescer.normalizeKey("https://sns-video-bd.xhscdn.com/stream/110/258/01e5.mp4?sign=abc&t=1"));
+    }
+
+    @Test
+    public void keepsImageProcessingQuery() {
+        String png = "https://ci.xiaohongshu.com/" + TOKEN + "?imageView2/format/png";
+        String jpeg = "https://ci.xiaohongshu.com/" + TOKEN + "?imageView2/format/jpeg";
+        assertNotEquals(DownloadCoalescer.normalizeKey(png), DownloadCoalescer.normalizeKey(jpeg));
+        assertEquals("ci.xiaohongshu.com/" + TOKEN + "?imageView2/format/png", DownloadCoalescer.normalizeKey(png));
+    }
+
+    @Test
+    public void keepsNumericSegmentsOnOtherHosts() {
+        assertEquals("example.com/20240412/photo.jpg",
+                DownloadCoalescer.normalizeKey("https://example.com/20240412/photo.jpg"));
+    }
+
+    @Test
+    public void onlyLeadingSegmentsAreVolatile() {
+        // A long number later in the path is part of the resource, not a signing prefix
+        assertNotEquals(DownloadCoalescer.normalizeKey("https://sns-video-bd.xhscdn.com/stream/12345678/a.mp4"),
+                DownloadCoalescer.normalizeKey("https://sns-video-bd.xhscdn.com/stream/87654321/a.mp4"));
+    }
+
+    @Test
+    public void unparseableUrlIsItsOwnKey() {
+        assertEquals("not a url", DownloadCoalescer.normalizeKey("not a url"));
+        assertEquals("", DownloadCoalescer.normalizeKey(null));
+    }
+}
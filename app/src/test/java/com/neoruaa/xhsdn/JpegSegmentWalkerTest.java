@@ -0,0 +1,237 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import okio.Buffer;
+
+public class JpegSegmentWalkerTest {
+    private static final byte[] SOI = {(byte) 0xFF, (byte) 0xD8};
+    private static final byte[] EOI = {(byte) 0xFF, (byte) 0xD9};
+    // Baseline frame header: 8-bit, 640x480, one component
+    private static final byte[] SOF0 = segment(0xC0, new byte[]{0x08, 0x01, (byte) 0xE0, 0x02, (byte) 0x80, 0x01, 0x01, 0x11, 0x00});
+    private static final byte[] SOS = segment(0xDA, new byte[]{0x01, 0x01, 0x00, 0x00, 0x3F, 0x00});
+    private static final byte[] SCAN = {0x12, 0x34, (byte) 0xFF, 0x00, 0x56};
+    private static final byte[] APP0 = segment(0xE0, ascii("JFIF\0\u0001\u0001\0\0\u0001\0\u0001\0\0"));
+    private static final byte[] EXIF = segment(0xE1, exifWithOrientation(6));
+    private static final byte[] OLD_XMP = segment(0xE1, ascii("http://ns.adobe.com/xap/1.0/\0<x:xmpmeta/>"));
+    private static final byte[] EXTENDED_XMP = segment(0xE1, ascii("http://ns.adobe.com/xmp/extension/\0chunk"));
+    private static final byte[] DQT = segment(0xDB, new byte[65]);
+
+    @Test
+    public void insertsRightAfterSoiWithoutJfifOrExif() throws IOException {
+        byte[] jpeg = concat(SOI, DQT, SOF0, SOS, SCAN, EOI);
+        JpegSegmentWalker.Layout layout = JpegSegmentWalker.walk(ByteBuffer.wrap(jpeg));
+        assertNotNull(layout);
+        assertEquals(2, layout.insertOffset);
+        assertEquals(SOI.length + DQT.length + SOF0.length, layout.scanOffset);
+        assertEquals(640, layout.width);
+        assertEquals(480, layout.height);
+        assertEquals(1, layout.orientation);
+        assertEquals(0, layout.droppedBytes());
+    }
+
+    @Test
+    public void insertsAfterLeadingJfifAndExif() throws IOException {
+        byte[] jpeg = concat(SOI, APP0, EXIF, DQT, SOF0, SOS, SCAN, EOI);
+        JpegSegmentWalker.Layout layout = JpegSegmentWalker.walk(ByteBuffer.wrap(jpeg));
+        assertNotNull(layout);
+        assertEquals(SOI.length + APP0.length + EXIF.length, layout.insertOffset);
+        assertEquals(6, layout.orientation);
+    }
+
+    @Test
+    public void exifAfterOtherSegmentsDoesNotMoveInsertion() throws IOException {
+        byte[] jpeg = concat(SOI, DQT, EXIF, SOF0, SOS, SCAN, EOI);
+        JpegSegmentWalker.Layout layout = JpegSegmentWalker.walk(ByteBuffer.wrap(jpeg));
+        assertNotNull(layout);
+        assertEquals(2, layout.insertOffset);
+    }
+
+    @Test
+    public void dropsExistingXmpAndExtendedXmp() throws IOException {
+        byte[] jpeg = concat(SOI, APP0, OLD_XMP, EXTENDED_XMP, EXIF, DQT, SOF0, SOS, SCAN, EOI);
+        JpegSegmentWalker.Layout layout = JpegSegmentWalker.walk(ByteBuffer.wrap(jpeg));
+        assertNotNull(layout);
+        assertEquals(OLD_XMP.length + EXTENDED_XMP.length, layout.droppedBytes());
+        // A dropped packet doesn't end the leading run, so the EXIF after it still counts
+        assertEquals(SOI.length + APP0.length + OLD_XMP.length + EXTENDED_XMP.length + EXIF.length,
+                layout.insertOffset);
+    }
+
+    @Test
+    public void spansCoverTheHeaderContiguously() throws IOException {
+        byte[] jpeg = concat(SOI, APP0, OLD_XMP, EXIF, DQT, SOF0, SOS, SCAN, EOI);
+        JpegSegmentWalker.Layout layout = JpegSegmentWalker.walk(ByteBuffer.wrap(jpeg));
+        assertNotNull(layout);
+        int expectedStart = 0;
+        boolean boundaryAtInsert = false;
+        for (JpegSegmentWalker.Span span : layout.spans) {
+            assertEquals(expectedStart, span.start);
+            boundaryAtInsert |= span.start == layout.insertOffset;
+            expectedStart = span.end;
+        }
+        assertEquals(layout.scanOffset, expectedStart);
+        assertTrue(boundaryAtInsert);
+    }
+
+    @Test
+    public void returnsNullWhenHeaderIsTruncated() throws IOException {
+        byte[] jpeg = concat(SOI, APP0, DQT, SOF0, SOS);
+        for (int length = 0; length < SOI.length + APP0.length + DQT.length + SOF0.length + 4; length++) {
+            ByteBuffer buffer = ByteBuffer.wrap(jpeg, 0, length).slice();
+            if (length >= 2) {
+                assertNull("length " + length, JpegSegmentWalker.walk(buffer));
+            }
+        }
+    }
+
+    @Test
+    public void rejectsNonJpeg() {
+        byte[] png = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+        assertWalkFails(png);
+    }
+
+    @Test
+    public void rejectsScanWithoutFrameHeader() {
+        assertWalkFails(concat(SOI, DQT, SOS, SCAN, EOI));
+    }
+
+    @Test
+    public void rejectsEoiBeforeImageData() {
+        assertWalkFails(concat(SOI, DQT, EOI));
+    }
+
+    @Test
+    public void rejectsBadSegmentLength() {
+        assertWalkFails(concat(SOI, new byte[]{(byte) 0xFF, (byte) 0xDB, 0x00, 0x01}, SOF0, SOS, SCAN, EOI));
+    }
+
+    @Test
+    public void splicesXmpIntoStreamedLivePhoto() throws IOException {
+        byte[] jpeg = concat(SOI, APP0, OLD_XMP, EXIF, DQT, SOF0, SOS, SCAN, EOI);
+        byte[] video = concat(box("ftyp", ascii("isom\0\0\u0002\0isommp41")), box("moov", new byte[0]),
+                box("mdat", new byte[]{1, 2, 3, 4}));
+
+        File output = File.createTempFile("live_photo", ".jpg");
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(output)) {
+                assertTrue(LivePhotoCreator.createLivePhoto(new Buffer().write(jpeg), jpeg.length,
+                        new Buffer().write(video), video.length, outputStream));
+            }
+            byte[] result = Files.readAllBytes(output.toPath());
+
+            int insertOffset = SOI.length + APP0.length + OLD_XMP.length + EXIF.length;
+            // Everything before the old XMP, then the EXIF, then the new XMP segment
+            assertArrayEquals(concat(SOI, APP0), slice(result, 0, SOI.length + APP0.length));
+            assertArrayEquals(EXIF, slice(result, SOI.length + APP0.length, EXIF.length));
+            int xmpStart = insertOffset - OLD_XMP.length;
+            assertEquals(0xFF, result[xmpStart] & 0xFF);
+            assertEquals(0xE1, result[xmpStart + 1] & 0xFF);
+            int xmpLength = ((result[xmpStart + 2] & 0xFF) << 8) | (result[xmpStart + 3] & 0xFF);
+            String xmp = new String(result, xmpStart + 4, xmpLength - 2, StandardCharsets.UTF_8);
+            assertTrue(xmp.startsWith("http://ns.adobe.com/xap/1.0/\0"));
+            assertFalse(xmp.contains("<x:xmpmeta/>"));
+
+            // The rest of the image unchanged, then the video ends the file exactly
+            int restStart = xmpStart + 2 + xmpLength;
+            byte[] rest = concat(DQT, SOF0, SOS, SCAN, EOI);
+            assertArrayEquals(rest, slice(result, restStart, rest.length));
+            assertEquals(restStart + rest.length + video.length, result.length);
+            assertArrayEquals(video, slice(result, result.length - video.length, video.length));
+        } finally {
+            output.delete();
+        }
+    }
+
+    @Test
+    public void streamedLivePhotoRejectsNonJpegStill() throws IOException {
+        byte[] video = concat(box("ftyp", ascii("isom\0\0\u0002\0isommp41")), box("mdat", new byte[4]));
+        File output = File.createTempFile("live_photo", ".jpg");
+        try (FileOutputStream outputStream = new FileOutputStream(output)) {
+            assertFalse(LivePhotoCreator.createLivePhoto(new Buffer().write(ascii("RIFF\0\0\0\0WEBPVP8 ")), 16,
+                    new Buffer().write(video), video.length, outputStream));
+            assertEquals(0, output.length());
+        } finally {
+            output.delete();
+        }
+    }
+
+    private static void assertWalkFails(byte[] data) {
+        try {
+            JpegSegmentWalker.walk(ByteBuffer.wrap(data));
+            fail("Expected an IOException");
+        } catch (IOException expected) {
+            // Expected
+        }
+    }
+
+    private static byte[] exifWithOrientation(int orientation) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(ascii("Exif\0\0"), 0, 6);
+        // Big-endian TIFF header, IFD0 at offset 8 with a single Orientation entry
+        byte[] tiff = {
+                'M', 'M', 0x00, 0x2A, 0x00, 0x00, 0x00, 0x08,
+                0x00, 0x01,
+                0x01, 0x12, 0x00, 0x03, 0x00, 0x00, 0x00, 0x01, 0x00, (byte) orientation, 0x00, 0x00,
+                0x00, 0x00, 0x00, 0x00,
+        };
+        out.write(tiff, 0, tiff.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] segment(int marker, byte[] payload) {
+        byte[] segment = new byte[4 + payload.length];
+        segment[0] = (byte) 0xFF;
+        segment[1] = (byte) marker;
+        segment[2] = (byte) ((payload.length + 2) >> 8);
+        segment[3] = (byte) (payload.length + 2);
+        System.arraycopy(payload, 0, segment, 4, payload.length);
+        return segment;
+    }
+
+    private static byte[] box(String type, byte[] payload) {
+        int size = 8 + payload.length;
+        byte[] box = new byte[size];
+        box[0] = (byte) (size >>> 24);
+        box[1] = (byte) (size >>> 16);
+        box[2] = (byte) (size >>> 8);
+        box[3] = (byte) size;
+        System.arraycopy(ascii(type), 0, box, 4, 4);
+        System.arraycopy(payload, 0, box, 8, payload.length);
+        return box;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] slice(byte[] data, int offset, int length) {
+        byte[] slice = new byte[length];
+        System.arraycopy(data, offset, slice, 0, length);
+        return slice;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
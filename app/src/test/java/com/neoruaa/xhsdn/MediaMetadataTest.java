@@ -0,0 +1,205 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import okio.Buffer;
+
+public class MediaMetadataTest {
+    private static final int FIXED_ONE = 0x10000;
+    private static final int[] IDENTITY = {FIXED_ONE, 0, 0, FIXED_ONE};
+    private static final int[] ROTATE_90 = {0, FIXED_ONE, -FIXED_ONE, 0};
+    private static final int[] ROTATE_180 = {-FIXED_ONE, 0, 0, -FIXED_ONE};
+    private static final int[] ROTATE_270 = {0, -FIXED_ONE, FIXED_ONE, 0};
+
+    @Test
+    public void readsDurationSizeAndRotation() {
+        byte[] moov = box("moov", mvhd(false, 600, 3000), trak(tkhd(false, 1080, 1920, ROTATE_90)));
+        MediaMetadata metadata = MediaMetadata.fromMoov(ByteBuffer.wrap(moov));
+        assertNotNull(metadata);
+        assertEquals(5000, metadata.durationMs);
+        assertEquals(1080, metadata.width);
+        assertEquals(1920, metadata.height);
+        assertEquals(90, metadata.orientation);
+    }
+
+    @Test
+    public void readsVersionOneBoxes() {
+        byte[] moov = box("moov", mvhd(true, 90000, 270000), trak(tkhd(true, 720, 1280, IDENTITY)));
+        MediaMetadata metadata = MediaMetadata.fromMoov(ByteBuffer.wrap(moov));
+        assertNotNull(metadata);
+        assertEquals(3000, metadata.durationMs);
+        assertEquals(720, metadata.width);
+        assertEquals(1280, metadata.height);
+        assertEquals(0, metadata.orientation);
+    }
+
+    @Test
+    public void mapsEveryRotationMatrix() {
+        assertEquals(180, MediaMetadata.fromMoov(ByteBuffer.wrap(
+                box("moov", trak(tkhd(false, 16, 16, ROTATE_180))))).orientation);
+        assertEquals(270, MediaMetadata.fromMoov(ByteBuffer.wrap(
+                box("moov", trak(tkhd(false, 16, 16, ROTATE_270))))).orientation);
+    }
+
+    @Test
+    public void skipsTracksWithoutSize() {
+        // The audio track comes first and has no width or height
+        byte[] moov = box("moov", mvhd(false, 1000, 2500),
+                trak(tkhd(false, 0, 0, IDENTITY)), trak(tkhd(false, 640, 480, IDENTITY)));
+        MediaMetadata metadata = MediaMetadata.fromMoov(ByteBuffer.wrap(moov));
+        assertNotNull(metadata);
+        assertEquals(640, metadata.width);
+        assertEquals(480, metadata.height);
+        assertEquals(2500, metadata.durationMs);
+    }
+
+    @Test
+    public void durationAloneIsEnough() {
+        MediaMetadata metadata = MediaMetadata.fromMoov(ByteBuffer.wrap(box("moov", mvhd(false, 1000, 1234))));
+        assertNotNull(metadata);
+        assertEquals(1234, metadata.durationMs);
+        assertEquals(0, metadata.width);
+    }
+
+    @Test
+    public void rejectsOtherBoxesAndEmptyMoov() {
+        assertNull(MediaMetadata.fromMoov(ByteBuffer.wrap(box("free", new byte[16]))));
+        assertNull(MediaMetadata.fromMoov(ByteBuffer.wrap(box("moov"))));
+        assertNull(MediaMetadata.fromMoov(ByteBuffer.wrap(new byte[4])));
+    }
+
+    @Test
+    public void scannerFindsMoovAfterMdat() {
+        byte[] moov = box("moov", mvhd(false, 600, 3000), trak(tkhd(false, 1080, 1920, ROTATE_90)));
+        byte[] video = concat(ftyp(), box("mdat", new byte[1000]), moov);
+        for (int chunk : new int[]{1, 7, 16, 333, video.length}) {
+            MediaMetadata metadata = scan(video, chunk);
+            assertNotNull("chunk " + chunk, metadata);
+            assertEquals(5000, metadata.durationMs);
+            assertEquals(1080, metadata.width);
+            assertEquals(90, metadata.orientation);
+        }
+    }
+
+    @Test
+    public void scannerFindsMoovBeforeMdat() {
+        byte[] moov = box("moov", mvhd(false, 1000, 4000), trak(tkhd(false, 640, 480, IDENTITY)));
+        MediaMetadata metadata = scan(concat(ftyp(), moov, box("mdat", new byte[500])), 64);
+        assertNotNull(metadata);
+        assertEquals(4000, metadata.durationMs);
+        assertEquals(640, metadata.width);
+    }
+
+    @Test
+    public void scannerFollowsLargeSizeBoxes() {
+        byte[] payload = new byte[300];
+        ByteBuffer mdat = ByteBuffer.allocate(16 + payload.length);
+        mdat.putInt(1).put(ascii("mdat")).putLong(16 + payload.length).put(payload);
+        byte[] moov = box("moov", mvhd(false, 1000, 1500));
+        MediaMetadata metadata = scan(concat(ftyp(), mdat.array(), moov), 5);
+        assertNotNull(metadata);
+        assertEquals(1500, metadata.durationMs);
+    }
+
+    @Test
+    public void scannerGivesUpOnMalformedBoxes() {
+        // A box size smaller than its own header
+        byte[] broken = {0, 0, 0, 4, 'f', 'r', 'e', 'e'};
+        byte[] moov = box("moov", mvhd(false, 1000, 1500));
+        assertNull(scan(concat(ftyp(), broken, moov), 8));
+    }
+
+    @Test
+    public void scannerSkipsOversizedMoov() {
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(Mp4Faststart.MAX_MOVED_BYTES + 1).put(ascii("moov"));
+        assertNull(scan(concat(ftyp(), header.array(), new byte[64]), 16));
+    }
+
+    @Test
+    public void scannerHasNoResultBeforeMoovIsComplete() {
+        byte[] moov = box("moov", mvhd(false, 1000, 1500));
+        byte[] video = concat(ftyp(), moov);
+        Buffer buffer = new Buffer().write(video);
+        MediaMetadata.Mp4Scanner scanner = new MediaMetadata.Mp4Scanner();
+        scanner.update(buffer, 0, video.length - 1);
+        assertNull(scanner.result());
+        scanner.update(buffer, video.length - 1, 1);
+        assertNotNull(scanner.result());
+    }
+
+    /**
+     * Feeds {@code video} to a scanner in pieces of {@code chunk} bytes, the way the copy loop does
+     */
+    private static MediaMetadata scan(byte[] video, int chunk) {
+        Buffer buffer = new Buffer().write(video);
+        MediaMetadata.Mp4Scanner scanner = new MediaMetadata.Mp4Scanner();
+        for (int offset = 0; offset < video.length; offset += chunk) {
+            scanner.update(buffer, offset, Math.min(chunk, video.length - offset));
+        }
+        return scanner.result();
+    }
+
+    private static byte[] ftyp() {
+        return box("ftyp", ascii("isom\0\0\u0002\0isommp41"));
+    }
+
+    private static byte[] mvhd(boolean wide, int timescale, long duration) {
+        ByteBuffer body = ByteBuffer.allocate(wide ? 112 : 100);
+        body.put((byte) (wide ? 1 : 0)).put(new byte[3]);
+        if (wide) {
+            body.putLong(0).putLong(0).putInt(timescale).putLong(duration);
+        } else {
+            body.putInt(0).putInt(0).putInt(timescale).putInt((int) duration);
+        }
+        return box("mvhd", body.array());
+    }
+
+    /**
+     * @param rotation The a, b, c, d entries of the transformation matrix
+     */
+    private static byte[] tkhd(boolean wide, int width, int height, int[] rotation) {
+        ByteBuffer body = ByteBuffer.allocate(wide ? 96 : 84);
+        body.put((byte) (wide ? 1 : 0)).put(new byte[3]);
+        // Creation and modification time, track id, reserved, duration
+        body.put(new byte[wide ? 32 : 20]);
+        // Reserved, layer, alternate group, volume, reserved
+        body.put(new byte[16]);
+        body.putInt(rotation[0]).putInt(rotation[1]).putInt(0)
+                .putInt(rotation[2]).putInt(rotation[3]).putInt(0)
+                .putInt(0).putInt(0).putInt(0x40000000);
+        body.putInt(width << 16).putInt(height << 16);
+        return box("tkhd", body.array());
+    }
+
+    private static byte[] trak(byte[] tkhd) {
+        return box("trak", tkhd, box("mdia", new byte[8]));
+    }
+
+    private static byte[] box(String type, byte[]... children) {
+        byte[] payload = concat(children);
+        ByteBuffer box = ByteBuffer.allocate(8 + payload.length);
+        box.putInt(8 + payload.length).put(ascii(type)).put(payload);
+        return box.array();
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
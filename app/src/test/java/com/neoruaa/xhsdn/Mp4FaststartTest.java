@@ -0,0 +1,317 @@
+package com.neoruaa.xhsdn;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import okio.Buffer;
+
+public class Mp4FaststartTest {
+    private static final byte[] FTYP = box("ftyp", ascii("isom\0\0\u0002\0isommp41"));
+    // Two chunks of 32 bytes each
+    private static final byte[] MEDIA = new byte[64];
+    private static final int MDAT_OFFSET = FTYP.length;
+    private static final int FIRST_CHUNK = MDAT_OFFSET + 8;
+    private static final int SECOND_CHUNK = FIRST_CHUNK + 32;
+
+    private File video;
+    private File output;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < MEDIA.length; i++) {
+            MEDIA[i] = (byte) i;
+        }
+        video = File.createTempFile("faststart", ".mp4");
+        output = File.createTempFile("faststart", ".out");
+    }
+
+    @After
+    public void tearDown() {
+        video.delete();
+        output.delete();
+    }
+
+    @Test
+    public void planMovesMoovAheadOfMdatAndShiftsStco() throws IOException {
+        byte[] moov = moov(stco(FIRST_CHUNK, SECOND_CHUNK));
+        write(video, concat(FTYP, box("mdat", MEDIA), moov));
+
+        Mp4Faststart.Plan plan;
+        try (FileChannel channel = new FileInputStream(video).getChannel()) {
+            plan = Mp4Faststart.plan(channel);
+        }
+        assertNotNull(plan);
+        assertEquals(MDAT_OFFSET, plan.firstMdatOffset);
+        assertEquals(MDAT_OFFSET + 8 + MEDIA.length, plan.moovOffset);
+        assertEquals(moov.length, plan.moovSize);
+        assertArrayEquals(new long[]{FIRST_CHUNK + moov.length, SECOND_CHUNK + moov.length},
+                chunkOffsets(toArray(plan.moov), "stco"));
+    }
+
+    @Test
+    public void planShiftsCo64() throws IOException {
+        byte[] moov = moov(co64(FIRST_CHUNK, SECOND_CHUNK));
+        write(video, concat(FTYP, box("mdat", MEDIA), moov));
+
+        Mp4Faststart.Plan plan;
+        try (FileChannel channel = new FileInputStream(video).getChannel()) {
+            plan = Mp4Faststart.plan(channel);
+        }
+        assertNotNull(plan);
+        assertArrayEquals(new long[]{FIRST_CHUNK + moov.length, SECOND_CHUNK + moov.length},
+                chunkOffsets(toArray(plan.moov), "co64"));
+    }
+
+    @Test
+    public void planLeavesOffsetsOutsideTheMovedRange() throws IOException {
+        // A chunk in a box ahead of the mdat doesn't move
+        byte[] moov = moov(stco(8, FIRST_CHUNK));
+        write(video, concat(FTYP, box("mdat", MEDIA), moov));
+
+        Mp4Faststart.Plan plan;
+        try (FileChannel channel = new FileInputStream(video).getChannel()) {
+            plan = Mp4Faststart.plan(channel);
+        }
+        assertNotNull(plan);
+        assertArrayEquals(new long[]{8, FIRST_CHUNK + moov.length}, chunkOffsets(toArray(plan.moov), "stco"));
+    }
+
+    @Test
+    public void planReturnsNullWhenAlreadyFaststart() throws IOException {
+        write(video, concat(FTYP, moov(stco(FIRST_CHUNK)), box("mdat", MEDIA)));
+        try (FileChannel channel = new FileInputStream(video).getChannel()) {
+            assertNull(Mp4Faststart.plan(channel));
+        }
+    }
+
+    @Test
+    public void planReturnsNullForCompressedMoov() throws IOException {
+        write(video, concat(FTYP, box("mdat", MEDIA), box("moov", box("cmov", new byte[16]))));
+        try (FileChannel channel = new FileInputStream(video).getChannel()) {
+            assertNull(Mp4Faststart.plan(channel));
+        }
+    }
+
+    @Test
+    public void prepareTailShiftsMdatChunksByTheTailSize() throws IOException {
+        byte[] moov = moov(stco(FIRST_CHUNK, SECOND_CHUNK));
+        byte[] trailing = box("free", new byte[8]);
+        ByteBuffer tail = ByteBuffer.wrap(concat(moov, trailing));
+
+        Mp4Faststart.prepareTail(tail, MDAT_OFFSET, 8 + MEDIA.length);
+
+        int tailSize = moov.length + trailing.length;
+        assertArrayEquals(new long[]{FIRST_CHUNK + tailSize, SECOND_CHUNK + tailSize},
+                chunkOffsets(tail.array(), "stco"));
+        // Boxes other than the moov are left alone
+        assertArrayEquals(trailing, slice(tail.array(), moov.length, trailing.length));
+    }
+
+    @Test
+    public void prepareTailMovesOffsetsIntoTheTailBackByTheMdatSize() throws IOException {
+        int mdatSize = 8 + MEDIA.length;
+        int tailOffset = MDAT_OFFSET + mdatSize;
+        byte[] trailing = box("free", new byte[8]);
+        // Point the second chunk at the trailing box, which ends up mdatSize bytes earlier
+        int trailingOffset = tailOffset + moov(stco(0, 0)).length;
+        byte[] moov = moov(stco(FIRST_CHUNK, trailingOffset));
+        ByteBuffer tail = ByteBuffer.wrap(concat(moov, trailing));
+
+        Mp4Faststart.prepareTail(tail, MDAT_OFFSET, mdatSize);
+
+        int tailSize = moov.length + trailing.length;
+        assertArrayEquals(new long[]{FIRST_CHUNK + tailSize, trailingOffset - mdatSize},
+                chunkOffsets(tail.array(), "stco"));
+    }
+
+    @Test
+    public void prepareTailRejectsSecondMdat() {
+        byte[] tail = concat(box("mdat", new byte[8]), moov(stco(FIRST_CHUNK)));
+        assertPrepareTailFails(tail);
+    }
+
+    @Test
+    public void prepareTailRejectsMissingMoov() {
+        assertPrepareTailFails(box("free", new byte[8]));
+    }
+
+    @Test
+    public void prepareTailRejectsCompressedMoov() {
+        assertPrepareTailFails(box("moov", box("cmov", new byte[16])));
+    }
+
+    @Test
+    public void offsetsFitStcoUpTo4GiB() {
+        assertTrue(Mp4Faststart.offsetsFitStco(0x100000000L));
+        assertFalse(Mp4Faststart.offsetsFitStco(0x100000001L));
+    }
+
+    @Test
+    public void liveFromFilesEmbedsFaststartVideo() throws IOException {
+        byte[] moov = moov(stco(FIRST_CHUNK, SECOND_CHUNK));
+        byte[] source = concat(FTYP, box("mdat", MEDIA), moov);
+        write(video, source);
+        File still = File.createTempFile("faststart", ".jpg");
+        try {
+            write(still, JPEG);
+            assertTrue(LivePhotoCreator.createLivePhoto(still, video, output));
+        } finally {
+            still.delete();
+        }
+        assertFaststartVideoAtEnd(Files.readAllBytes(output.toPath()), source.length, moov.length);
+    }
+
+    @Test
+    public void streamedLivePhotoEmbedsFaststartVideo() throws IOException {
+        byte[] moov = moov(stco(FIRST_CHUNK, SECOND_CHUNK));
+        byte[] source = concat(FTYP, box("mdat", MEDIA), moov);
+        try (FileOutputStream outputStream = new FileOutputStream(output)) {
+            assertTrue(LivePhotoCreator.createLivePhoto(new Buffer().write(JPEG), JPEG.length,
+                    new Buffer().write(source), source.length, outputStream));
+        }
+        assertFaststartVideoAtEnd(Files.readAllBytes(output.toPath()), source.length, moov.length);
+    }
+
+    @Test
+    public void streamedLivePhotoCopiesFaststartVideoVerbatim() throws IOException {
+        byte[] source = concat(FTYP, moov(stco(FIRST_CHUNK + 1000)), box("mdat", MEDIA));
+        try (FileOutputStream outputStream = new FileOutputStream(output)) {
+            assertTrue(LivePhotoCreator.createLivePhoto(new Buffer().write(JPEG), JPEG.length,
+                    new Buffer().write(source), source.length, outputStream));
+        }
+        byte[] result = Files.readAllBytes(output.toPath());
+        assertArrayEquals(source, slice(result, result.length - source.length, source.length));
+    }
+
+    /**
+     * The video ends the file, laid out as ftyp, moov, mdat, with the moov's chunk offsets pointing
+     * at the same media bytes as before
+     */
+    private static void assertFaststartVideoAtEnd(byte[] result, int videoLength, int moovLength) {
+        byte[] embedded = slice(result, result.length - videoLength, videoLength);
+        assertArrayEquals(FTYP, slice(embedded, 0, FTYP.length));
+        assertEquals("moov", new String(embedded, FTYP.length + 4, 4, StandardCharsets.US_ASCII));
+        int mdat = FTYP.length + moovLength;
+        assertEquals("mdat", new String(embedded, mdat + 4, 4, StandardCharsets.US_ASCII));
+        assertArrayEquals(MEDIA, slice(embedded, mdat + 8, MEDIA.length));
+
+        long[] offsets = chunkOffsets(slice(embedded, FTYP.length, moovLength), "stco");
+        assertEquals(mdat + 8, offsets[0]);
+        assertEquals(MEDIA[0], embedded[(int) offsets[0]]);
+        assertEquals(MEDIA[32], embedded[(int) offsets[1]]);
+    }
+
+    private static void assertPrepareTailFails(byte[] tail) {
+        try {
+            Mp4Faststart.prepareTail(ByteBuffer.wrap(tail), MDAT_OFFSET, 8 + MEDIA.length);
+            fail("Expected an IOException");
+        } catch (IOException expected) {
+            // Expected
+        }
+    }
+
+    // SOI, a baseline frame header, the scan header and a few bytes of scan data
+    private static final byte[] JPEG = {
+            (byte) 0xFF, (byte) 0xD8,
+            (byte) 0xFF, (byte) 0xC0, 0x00, 0x0B, 0x08, 0x00, 0x10, 0x00, 0x10, 0x01, 0x01, 0x11, 0x00,
+            (byte) 0xFF, (byte) 0xDA, 0x00, 0x08, 0x01, 0x01, 0x00, 0x00, 0x3F, 0x00,
+            0x12, 0x34, 0x56,
+            (byte) 0xFF, (byte) 0xD9,
+    };
+
+    private static byte[] moov(byte[] chunkOffsetTable) {
+        return box("moov", box("trak", box("mdia", box("minf", box("stbl", chunkOffsetTable)))));
+    }
+
+    private static byte[] stco(long... offsets) {
+        ByteBuffer body = ByteBuffer.allocate(8 + 4 * offsets.length);
+        body.putInt(0).putInt(offsets.length);
+        for (long offset : offsets) {
+            body.putInt((int) offset);
+        }
+        return box("stco", body.array());
+    }
+
+    private static byte[] co64(long... offsets) {
+        ByteBuffer body = ByteBuffer.allocate(8 + 8 * offsets.length);
+        body.putInt(0).putInt(offsets.length);
+        for (long offset : offsets) {
+            body.putLong(offset);
+        }
+        return box("co64", body.array());
+    }
+
+    /**
+     * Reads the entries of the first chunk offset table of the given type in {@code data}
+     */
+    private static long[] chunkOffsets(byte[] data, String type) {
+        byte[] needle = ascii(type);
+        for (int i = 4; i + 4 <= data.length; i++) {
+            if (data[i] == needle[0] && data[i + 1] == needle[1] && data[i + 2] == needle[2] && data[i + 3] == needle[3]) {
+                ByteBuffer table = ByteBuffer.wrap(data, i + 4, data.length - i - 4);
+                table.getInt();
+                long[] offsets = new long[table.getInt()];
+                for (int j = 0; j < offsets.length; j++) {
+                    offsets[j] = type.equals("co64") ? table.getLong() : table.getInt() & 0xFFFFFFFFL;
+                }
+                return offsets;
+            }
+        }
+        throw new AssertionError("No " + type + " box");
+    }
+
+    private static byte[] box(String type, byte[] payload) {
+        ByteBuffer box = ByteBuffer.allocate(8 + payload.length);
+        box.putInt(8 + payload.length).put(ascii(type)).put(payload);
+        return box.array();
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] slice(byte[] data, int offset, int length) {
+        byte[] slice = new byte[length];
+        System.arraycopy(data, offset, slice, 0, length);
+        return slice;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}